@@ -0,0 +1,125 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Static entry points of MVTO for the benchmarks. MVTO lives in the default package, which a
+ * class in a named package cannot import, and JMH does not accept benchmarks in the default
+ * package. The methods are therefore looked up once as constant method handles, which the JIT
+ * inlines like direct calls.
+ */
+final class Engine {
+    private static final MethodHandle BEGIN;
+    private static final MethodHandle INSERT;
+    private static final MethodHandle READ;
+    private static final MethodHandle WRITE;
+    private static final MethodHandle COMMIT_ASYNC;
+    private static final MethodHandle SET_OFF_HEAP;
+    private static final MethodHandle START_GC;
+    private static final MethodHandle STOP_GC;
+
+    static {
+        try {
+            Class<?> mvto = Class.forName("MVTO");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            BEGIN = lookup.findStatic(mvto, "beginTransaction", MethodType.methodType(long.class));
+            INSERT = lookup.findStatic(mvto, "insert", MethodType.methodType(void.class, long.class, int.class, int.class));
+            READ = lookup.findStatic(mvto, "read", MethodType.methodType(int.class, long.class, int.class));
+            WRITE = lookup.findStatic(mvto, "write", MethodType.methodType(void.class, long.class, int.class, int.class));
+            COMMIT_ASYNC = lookup.findStatic(mvto, "commitAsync", MethodType.methodType(CompletableFuture.class, long.class));
+            SET_OFF_HEAP = lookup.findStatic(mvto, "setOffHeapStorage", MethodType.methodType(void.class, boolean.class));
+            START_GC = lookup.findStatic(mvto, "startGarbageCollector", MethodType.methodType(void.class, long.class));
+            STOP_GC = lookup.findStatic(mvto, "stopGarbageCollector", MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Engine() {
+    }
+
+    static long begin() {
+        try {
+            return (long) BEGIN.invokeExact();
+        } catch (Throwable t) {
+            throw unchecked(t);
+        }
+    }
+
+    static void insert(long xact, int key, int value) throws Exception {
+        try {
+            INSERT.invokeExact(xact, key, value);
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw unchecked(t);
+        }
+    }
+
+    static int read(long xact, int key) throws Exception {
+        try {
+            return (int) READ.invokeExact(xact, key);
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw unchecked(t);
+        }
+    }
+
+    static void write(long xact, int key, int value) throws Exception {
+        try {
+            WRITE.invokeExact(xact, key, value);
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw unchecked(t);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static CompletableFuture<Void> commitAsync(long xact) {
+        try {
+            return (CompletableFuture<Void>) COMMIT_ASYNC.invokeExact(xact);
+        } catch (Throwable t) {
+            throw unchecked(t);
+        }
+    }
+
+    static void setOffHeapStorage(boolean enabled) {
+        try {
+            SET_OFF_HEAP.invokeExact(enabled);
+        } catch (Throwable t) {
+            throw unchecked(t);
+        }
+    }
+
+    static void startGarbageCollector(long periodMillis) {
+        try {
+            START_GC.invokeExact(periodMillis);
+        } catch (Throwable t) {
+            throw unchecked(t);
+        }
+    }
+
+    static void stopGarbageCollector() {
+        try {
+            STOP_GC.invokeExact();
+        } catch (Throwable t) {
+            throw unchecked(t);
+        }
+    }
+
+    private static RuntimeException unchecked(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new UndeclaredThrowableException(t);
+    }
+}
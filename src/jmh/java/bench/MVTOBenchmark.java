@@ -0,0 +1,157 @@
+package bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * YCSB-style workload against MVTO. Every invocation runs one transaction of length operations
+ * on keys drawn from a Zipfian distribution: a read with probability readRatio, the insert of a
+ * new key with probability insertRatio, a write otherwise. It then commits and waits for the
+ * outcome, which includes waiting for the transactions it read from.
+ *
+ * throughput reports transactions per second, followed by the number of them that committed
+ * and aborted, whose ratio is the abort rate; latency reports the percentiles of the time per
+ * transaction.
+ *
+ *   mvn -B -P jmh package -DskipTests
+ *   java -jar target/benchmarks.jar MVTOBenchmark -t 8 -p readRatio=0.5 -p zipfTheta=0.8
+ *
+ * MVTO is a single static store that every trial loads its keys into, so each trial needs a
+ * fork of its own: -f 0 fails in the second trial with keys that already exist.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MVTOBenchmark {
+    private static final int LOAD_BATCH = 1000;
+
+    @Param("100000")
+    public int keys;
+
+    @Param("0.99")
+    public double zipfTheta;
+
+    @Param("0.9")
+    public double readRatio;
+
+    @Param("0")
+    public double insertRatio;
+
+    @Param("4")
+    public int length;
+
+    @Param("false")
+    public boolean offHeap;
+
+    @Param("10")
+    public long gcPeriodMillis;
+
+    private ZipfianGenerator keyChooser;
+    private final AtomicInteger nextInsertedKey = new AtomicInteger();
+
+    /**
+     * Per-thread commit and abort counts, summed by JMH over the measurement iterations.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Outcomes {
+        public long commits;
+        public long aborts;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            commits = 0;
+            aborts = 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        SplittableRandom random;
+
+        @Setup(Level.Trial)
+        public void seed() {
+            random = new SplittableRandom(Thread.currentThread().getId() * 0x9E3779B97F4A7C15L);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void load() throws Exception {
+        Engine.setOffHeapStorage(offHeap);
+        for (int key = 0; key < keys; key += LOAD_BATCH) {
+            long xact = Engine.begin();
+            for (int k = key; k < Math.min(keys, key + LOAD_BATCH); k++) {
+                Engine.insert(xact, k, k);
+            }
+            Engine.commitAsync(xact).join();
+        }
+        keyChooser = new ZipfianGenerator(keys, zipfTheta);
+        nextInsertedKey.set(keys);
+        if (gcPeriodMillis > 0) {
+            Engine.startGarbageCollector(gcPeriodMillis);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        Engine.stopGarbageCollector();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void throughput(Client client, Outcomes outcomes, Blackhole blackhole) {
+        if (transaction(client, blackhole)) {
+            outcomes.commits++;
+        } else {
+            outcomes.aborts++;
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean latency(Client client, Blackhole blackhole) {
+        return transaction(client, blackhole);
+    }
+
+    // returns whether the transaction committed; MVTO rolls a transaction back itself when it refuses it
+    private boolean transaction(Client client, Blackhole blackhole) {
+        SplittableRandom random = client.random;
+        long xact = Engine.begin();
+        try {
+            for (int i = 0; i < length; i++) {
+                double op = random.nextDouble();
+                if (op < readRatio) {
+                    blackhole.consume(Engine.read(xact, keyChooser.next(random)));
+                } else if (op < readRatio + insertRatio) {
+                    Engine.insert(xact, nextInsertedKey.getAndIncrement(), i);
+                } else {
+                    Engine.write(xact, keyChooser.next(random), i);
+                }
+            }
+            Engine.commitAsync(xact).join();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package bench;
+
+import java.util.SplittableRandom;
+
+/**
+ * Draws items 0..n-1 with a Zipfian distribution of exponent theta, as in YCSB (Gray et al.,
+ * "Quickly Generating Billion-Record Synthetic Databases"). Ranks are scrambled with a hash so
+ * that the popular items are spread over the key space rather than clustered at its start.
+ * Immutable: threads share a generator and each passes its own random source.
+ */
+final class ZipfianGenerator {
+    private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 1099511628211L;
+
+    private final int items;
+    private final double zetan;
+    private final double alpha;
+    private final double eta;
+    private final double secondThreshold;
+
+    /**
+     * @param theta 0 for a uniform distribution, YCSB uses 0.99; must not be 1.
+     */
+    ZipfianGenerator(int items, double theta) {
+        if (items < 2 || theta < 0 || theta == 1) {
+            throw new IllegalArgumentException("Need at least 2 items and a theta >= 0 other than 1.");
+        }
+        this.items = items;
+        this.zetan = zeta(items, theta);
+        this.alpha = 1 / (1 - theta);
+        this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+        this.secondThreshold = 1 + Math.pow(0.5, theta);
+    }
+
+    int next(SplittableRandom random) {
+        return scramble(nextRank(random));
+    }
+
+    // 0 is the most popular rank
+    private long nextRank(SplittableRandom random) {
+        double u = random.nextDouble();
+        double uz = u * zetan;
+        if (uz < 1) {
+            return 0;
+        }
+        if (uz < secondThreshold) {
+            return 1;
+        }
+        return Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+    }
+
+    private int scramble(long rank) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ (rank & 0xFF)) * FNV_PRIME;
+            rank >>>= 8;
+        }
+        return (int) Long.remainderUnsigned(hash, items);
+    }
+
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+}
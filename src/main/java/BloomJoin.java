@@ -1,4 +1,5 @@
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class BloomJoin {
@@ -19,213 +20,509 @@ public class BloomJoin {
         System.out.println(n2.getTotalMessageSize());
     }
 
-}
+    abstract static class Node {
+        public static final int BUCKETS = 10000;
+        private long totalMessageSize;
+        private Message inbox;
+        private MessageCodec codec = new BinaryCodec();
+        private double falsePositiveRate = BloomFilter.DEFAULT_FALSE_POSITIVE_RATE;
+
+        /**
+         * @param receiver the receiver node.
+         * @param msg the message to be sent to the receiver node.
+         */
+        protected void send(Node receiver, Object msg) {
+            try {
+                byte[] bytes = codec.encode(msg);
+                Message message = new Message(this, receiver, bytes, codec);
+                totalMessageSize += bytes.length;
+                receiver.setInbox(message);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
 
-abstract class Node {
-    public static final int BUCKETS = 10000;
-    private long totalMessageSize;
-    private Message inbox;
+        /**
+         * @param codec the encoding of the messages sent from the current node.
+         */
+        public void setCodec(MessageCodec codec) {
+            this.codec = codec;
+        }
 
-    /**
-     * @param receiver the receiver node.
-     * @param msg the message to be sent to the receiver node.
-     */
-    protected void send(Node receiver, Object msg) {
-        try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(baos);
-            oos.writeObject(msg);
-            oos.close();
-            Message message = new Message(this, receiver, baos.toByteArray());
-            totalMessageSize += baos.size();
-            receiver.setInbox(message);
-        } catch (IOException e) {
-            e.printStackTrace();
+        /**
+         * @param rate the false positive rate the Bloom filters built by the current node aim for.
+         */
+        public void setFalsePositiveRate(double rate) {
+            if (!(rate > 0 && rate < 1)) {
+                throw new IllegalArgumentException("The false positive rate must be in (0, 1): " + rate);
+            }
+            this.falsePositiveRate = rate;
         }
-    }
 
-    protected void setInbox(Message msg) {
-        this.inbox = msg;
-    }
+        public double getFalsePositiveRate() {
+            return falsePositiveRate;
+        }
 
-    /**
-     * @return the last message that delivered to the current node.
-     */
-    protected Message getInbox() {
-        return inbox;
-    }
+        protected void setInbox(Message msg) {
+            this.inbox = msg;
+        }
 
-    /**
-     * @return the total number of bytes that is sent from the current node.
-     */
-    public long getTotalMessageSize() {
-        return totalMessageSize;
-    }
-    /**
-     * The hash function that should be used by BloomJoin
-     */
-    public int hashFunction(int i) {
-        return i % BUCKETS;
+        /**
+         * @return the last message that delivered to the current node.
+         */
+        protected Message getInbox() {
+            return inbox;
+        }
+
+        /**
+         * @return the total number of bytes that is sent from the current node.
+         */
+        public long getTotalMessageSize() {
+            return totalMessageSize;
+        }
+        /**
+         * The hash function that should be used by BloomJoin
+         */
+        public int hashFunction(int i) {
+            return i % BUCKETS;
+        }
+        public abstract void run(Node other);
     }
-    public abstract void run(Node other);
-}
 
-class NodeA extends Node {
-    private List<R> data;
-    private List<RS> result;
+    static class NodeA extends Node {
+        private List<R> data;
+        private List<RS> result;
 
-    public NodeA(List<R> data) {
-        this.data = data;
-    }
+        public NodeA(List<R> data) {
+            this.data = data;
+        }
 
-    public void run(Node other) {
+        public void run(Node other) {
 
-        Map<Integer, List<R>> table = new HashMap<>();
+            Map<Integer, List<R>> table = new HashMap<>();
 
-        BitSet bloomFilter = new BitSet(BUCKETS);
-        for (R tuple: data) {
-            bloomFilter.set(hashFunction(tuple.getB()));
-            List<R> list = table.get(tuple.getB());
-            if (list == null) {
-                list = new ArrayList<>();
-                table.put(tuple.getB(), list);
+            for (R tuple: data) {
+                List<R> list = table.get(tuple.getB());
+                if (list == null) {
+                    list = new ArrayList<>();
+                    table.put(tuple.getB(), list);
+                }
+                list.add(tuple);
+            }
+            // sized for the distinct join keys
+            BloomFilter bloomFilter = new BloomFilter(table.size(), getFalsePositiveRate());
+            for (Integer key: table.keySet()) {
+                bloomFilter.add(key);
+            }
+            send(other, bloomFilter);
+
+            other.run(this);
+
+            result = new ArrayList<>();
+
+            List<S> otherTuples = (List<S>)getInbox().getContent();
+
+            for (S otherTuple: otherTuples) {
+                List<R> localTuples = table.get(otherTuple.getB());
+                if (localTuples == null) continue;
+                for (R localTuple: localTuples) {
+                    result.add(new RS(localTuple.getA(), localTuple.getB(), otherTuple.getC()));
+                }
             }
-            list.add(tuple);
         }
-        send(other, bloomFilter);
 
-        other.run(this);
+        /**
+         * @return the result of BloomJoin.
+         */
+        public List<RS> getResult() {
+            return result;
+        }
+    }
 
-        result = new ArrayList<>();
+    static class NodeB extends Node {
+        private List<S> data;
+        public NodeB(List<S> data) {
+            this.data = data;
+        }
+        public void run(Node other) {
+            BloomFilter bloomFilter = (BloomFilter) this.getInbox().getContent();
 
-        List<S> otherTuples = (List<S>)getInbox().getContent();
+            List<S> toSend = new ArrayList<>();
 
-        for (S otherTuple: otherTuples) {
-            List<R> localTuples = table.get(otherTuple.getB());
-            if (localTuples == null) continue;
-            for (R localTuple: localTuples) {
-                result.add(new RS(localTuple.getA(), localTuple.getB(), otherTuple.getC()));
+            for (S tuple: data) {
+                if (bloomFilter.mightContain(tuple.getB())) {
+                    toSend.add(tuple);
+                }
             }
+
+            send(other, toSend);
         }
     }
 
     /**
-     * @return the result of BloomJoin.
+     * Bloom filter of int keys with k hash functions, sized for n keys and a false positive rate p:
+     * m = -n ln(p) / ln(2)^2 bits and k = m / n ln(2) hashes. The k bit positions of a key come from
+     * one 64-bit hash of it, as h1 + i * h2 for i < k (double hashing), the same for add and
+     * mightContain, wherever the filter was built.
      */
-    public List<RS> getResult() {
-        return result;
-    }
-}
-class NodeB extends Node {
-    private List<S> data;
-    public NodeB(List<S> data) {
-        this.data = data;
-    }
-    public void run(Node other) {
-        BitSet bloomFilter = (BitSet) this.getInbox().getContent();
+    static class BloomFilter implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+        private static final int MIN_BITS = 64;
+        // what a rate of 1e-9 takes, beyond that every probe costs more than it saves
+        private static final int MAX_HASHES = 30;
+
+        private final long[] words;
+        private final int bits;
+        private final int hashes;
+
+        /**
+         * @param expectedKeys the number of distinct keys that will be added.
+         * @param falsePositiveRate the rate of mightContain being true for a key not added, once
+         *                          expectedKeys keys are.
+         */
+        public BloomFilter(long expectedKeys, double falsePositiveRate) {
+            if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+                throw new IllegalArgumentException("The false positive rate must be in (0, 1): " + falsePositiveRate);
+            }
+            long n = Math.max(expectedKeys, 1);
+            double m = -n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+            this.bits = (int) Math.max(MIN_BITS, Math.min(Math.ceil(m), Integer.MAX_VALUE - 63));
+            // from the optimal size, the bits added for small n only lower the rate
+            this.hashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round(m / n * Math.log(2))));
+            this.words = new long[(bits + 63) >>> 6];
+        }
 
-        List<S> toSend = new ArrayList<>();
+        /**
+         * @param words the bits of the filter, as getWords returns them.
+         */
+        public BloomFilter(long[] words, int bits, int hashes) {
+            if (bits < 1 || hashes < 1 || words.length != (bits + 63) >>> 6) {
+                throw new IllegalArgumentException("A filter of " + bits + " bits and " + hashes + " hashes in "
+                        + words.length + " words");
+            }
+            this.words = words;
+            this.bits = bits;
+            this.hashes = hashes;
+        }
 
-        for (S tuple: data) {
-            if (bloomFilter.get(tuple.getB())) {
-                toSend.add(tuple);
+        public void add(int key) {
+            long hash = hash(key);
+            long h1 = (int) hash;
+            long h2 = (int) (hash >>> 32);
+            for (int i = 0; i < hashes; i++) {
+                int bit = (int) Math.floorMod(h1 + i * h2, (long) bits);
+                words[bit >>> 6] |= 1L << bit;
             }
         }
 
-        send(other, toSend);
-    }
-}
+        /**
+         * @return false if key was not added, true if it was or, at the false positive rate, was not.
+         */
+        public boolean mightContain(int key) {
+            long hash = hash(key);
+            long h1 = (int) hash;
+            long h2 = (int) (hash >>> 32);
+            for (int i = 0; i < hashes; i++) {
+                int bit = (int) Math.floorMod(h1 + i * h2, (long) bits);
+                if ((words[bit >>> 6] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
 
-class R {
-    private int a, b;
-    public R(int a, int b) {
-        this.a = a;
-        this.b = b;
-    }
+        public long[] getWords() {
+            return words;
+        }
 
-    public int getA() {
-        return a;
-    }
+        public int getBits() {
+            return bits;
+        }
 
-    public int getB() {
-        return b;
-    }
-}
+        public int getHashes() {
+            return hashes;
+        }
 
-class S implements Serializable {
-    private int b, c;
-    public S(int b, int c) {
-        this.b = b;
-        this.c = c;
+        // the finalizer of MurmurHash3, spreads every bit of key over the 64 of the hash
+        private static long hash(int key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 33;
+            h *= 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 33;
+            h *= 0xC4CEB93FE1A85B53L;
+            h ^= h >>> 33;
+            return h;
+        }
     }
 
-    public int getB() {
-        return b;
-    }
+    static class R {
+        private int a, b;
+        public R(int a, int b) {
+            this.a = a;
+            this.b = b;
+        }
 
-    public int getC() {
-        return c;
-    }
-}
-
-class RS {
-    private int a, b, c;
-    public RS(int a, int b, int c) {
-        this.a = a;
-        this.b = b;
-        this.c = c;
-    }
+        public int getA() {
+            return a;
+        }
 
-    public int getA() {
-        return a;
+        public int getB() {
+            return b;
+        }
     }
 
-    public int getB() {
-        return b;
-    }
+    static class S implements Serializable {
+        private int b, c;
+        public S(int b, int c) {
+            this.b = b;
+            this.c = c;
+        }
+
+        public int getB() {
+            return b;
+        }
 
-    public int getC() {
-        return c;
+        public int getC() {
+            return c;
+        }
     }
 
-    @Override
-    public String toString() {
-        return "<" + a + ", " + b + ", " + c + ">";
+    static class RS {
+        private int a, b, c;
+        public RS(int a, int b, int c) {
+            this.a = a;
+            this.b = b;
+            this.c = c;
+        }
+
+        public int getA() {
+            return a;
+        }
+
+        public int getB() {
+            return b;
+        }
+
+        public int getC() {
+            return c;
+        }
+
+        @Override
+        public String toString() {
+            return "<" + a + ", " + b + ", " + c + ">";
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(obj instanceof RS) {
+                RS rs = (RS) obj;
+                return a == rs.a && b == rs.b && c == rs.c;
+            } else {
+                return false;
+            }
+        }
     }
 
-    @Override
-    public boolean equals(Object obj) {
-        if(obj instanceof RS) {
-            RS rs = (RS) obj;
-            return a == rs.a && b == rs.b && c == rs.c;
-        } else {
-            return false;
+    static class Message {
+        private Node sender;
+        private Node receiver;
+        private byte[] msg;
+        private MessageCodec codec;
+        public Message(Node sender, Node receiver, byte[] msg) {
+            this(sender, receiver, msg, new SerializationCodec());
+        }
+
+        /**
+         * @param codec the encoding msg is in.
+         */
+        public Message(Node sender, Node receiver, byte[] msg, MessageCodec codec) {
+            this.sender = sender;
+            this.receiver = receiver;
+            this.msg = msg;
+            this.codec = codec;
+        }
+
+        /**
+         * @return the object that the message contains.
+         */
+        public Object getContent() {
+            try {
+                return codec.decode(msg);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return null;
         }
     }
-}
 
+    /**
+     * Turns the objects nodes send to each other into bytes and back.
+     */
+    interface MessageCodec {
+        byte[] encode(Object msg) throws IOException;
 
-class Message {
-    private Node sender;
-    private Node receiver;
-    private byte[] msg;
-    public Message(Node sender, Node receiver, byte[] msg) {
-        this.sender = sender;
-        this.receiver = receiver;
-        this.msg = msg;
+        Object decode(byte[] bytes) throws IOException;
     }
 
     /**
-     * @return the object that the message contains.
+     * Java object serialization, for any Serializable message.
      */
-    public Object getContent() {
-        try {
-            ByteArrayInputStream bis = new ByteArrayInputStream(msg);
-            ObjectInputStream ois = new ObjectInputStream(bis);
-            return ois.readObject();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return null;
+    static class SerializationCodec implements MessageCodec {
+        public byte[] encode(Object msg) throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(baos);
+            oos.writeObject(msg);
+            oos.close();
+            return baos.toByteArray();
+        }
+
+        public Object decode(byte[] bytes) throws IOException {
+            try {
+                return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Compact encoding of the messages of BloomJoin, a tag byte and then:
+     * BITSET: the number of words, then the words of the bitset as raw longs;
+     * BLOOM_FILTER: the number of bits and of hashes, then the words as for BITSET;
+     * TUPLES: the number of tuples, then per S tuple b as the difference to the b before it and c,
+     * both zigzag varints;
+     * OBJECT: anything else, with Java object serialization.
+     * Counts are varints as well.
+     */
+    static class BinaryCodec implements MessageCodec {
+        private static final int BITSET = 1;
+        private static final int TUPLES = 2;
+        private static final int OBJECT = 3;
+        private static final int BLOOM_FILTER = 4;
+
+        private final SerializationCodec fallback = new SerializationCodec();
+
+        public byte[] encode(Object msg) throws IOException {
+            if (msg instanceof BitSet) {
+                long[] words = ((BitSet) msg).toLongArray();
+                ByteBuffer out = ByteBuffer.allocate(1 + 5 + 8 * words.length);
+                out.put((byte) BITSET);
+                putWords(out, words);
+                return Arrays.copyOf(out.array(), out.position());
+            }
+            if (msg instanceof BloomFilter) {
+                BloomFilter filter = (BloomFilter) msg;
+                ByteBuffer out = ByteBuffer.allocate(1 + 15 + 8 * filter.getWords().length);
+                out.put((byte) BLOOM_FILTER);
+                putVarint(out, filter.getBits());
+                putVarint(out, filter.getHashes());
+                putWords(out, filter.getWords());
+                return Arrays.copyOf(out.array(), out.position());
+            }
+            if (msg instanceof List && onlyTuples((List<?>) msg)) {
+                List<?> tuples = (List<?>) msg;
+                // a varint takes at most 5 bytes
+                ByteBuffer out = ByteBuffer.allocate(1 + 5 + 10 * tuples.size());
+                out.put((byte) TUPLES);
+                putVarint(out, tuples.size());
+                int b = 0;
+                for (Object tuple: tuples) {
+                    S s = (S) tuple;
+                    putVarint(out, zigzag(s.getB() - b));
+                    putVarint(out, zigzag(s.getC()));
+                    b = s.getB();
+                }
+                return Arrays.copyOf(out.array(), out.position());
+            }
+            byte[] serialized = fallback.encode(msg);
+            byte[] bytes = new byte[1 + serialized.length];
+            bytes[0] = OBJECT;
+            System.arraycopy(serialized, 0, bytes, 1, serialized.length);
+            return bytes;
+        }
+
+        public Object decode(byte[] bytes) throws IOException {
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            int tag = in.get();
+            if (tag == BITSET) {
+                return BitSet.valueOf(getWords(in));
+            }
+            if (tag == BLOOM_FILTER) {
+                int bits = getVarint(in);
+                int hashes = getVarint(in);
+                return new BloomFilter(getWords(in), bits, hashes);
+            }
+            if (tag == TUPLES) {
+                int count = getVarint(in);
+                List<S> tuples = new ArrayList<>(count);
+                int b = 0;
+                for (int i = 0; i < count; i++) {
+                    b += unzigzag(getVarint(in));
+                    tuples.add(new S(b, unzigzag(getVarint(in))));
+                }
+                return tuples;
+            }
+            if (tag == OBJECT) {
+                return fallback.decode(Arrays.copyOfRange(bytes, 1, bytes.length));
+            }
+            throw new IOException("Unknown message tag " + tag);
+        }
+
+        private static boolean onlyTuples(List<?> list) {
+            for (Object o: list) {
+                if (!(o instanceof S)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static void putWords(ByteBuffer out, long[] words) {
+            putVarint(out, words.length);
+            for (long word: words) {
+                out.putLong(word);
+            }
+        }
+
+        private static long[] getWords(ByteBuffer in) throws IOException {
+            int count = getVarint(in);
+            if (count < 0 || count > in.remaining() / 8) {
+                throw new IOException("Malformed word count " + count);
+            }
+            long[] words = new long[count];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.getLong();
+            }
+            return words;
+        }
+
+        private static int zigzag(int i) {
+            return (i << 1) ^ (i >> 31);
+        }
+
+        private static int unzigzag(int i) {
+            return (i >>> 1) ^ -(i & 1);
+        }
+
+        private static void putVarint(ByteBuffer out, int i) {
+            while ((i & ~0x7F) != 0) {
+                out.put((byte) ((i & 0x7F) | 0x80));
+                i >>>= 7;
+            }
+            out.put((byte) i);
+        }
+
+        private static int getVarint(ByteBuffer in) throws IOException {
+            int i = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = in.get();
+                i |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return i;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
     }
 }
\ No newline at end of file
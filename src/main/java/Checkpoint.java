@@ -0,0 +1,159 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Memory-mapped snapshot of the committed state of MVTO, so that a restart only replays the
+ * part of the write-ahead log written after it. A checkpoint reads through a read-only
+ * transaction, so it is consistent at the timestamp of that snapshot and transactions keep
+ * running while it is taken.
+ *
+ * File layout, all big-endian: magic | timestamp (long) | count (long) |
+ * count * (key | wts (long) | kind | value), where a MVTO.BYTES entry is followed by as many
+ * bytes as its value says
+ **/
+class Checkpoint {
+    private static final String FILE_NAME = "checkpoint";
+    private static final int MAGIC = 0x4D565444;
+    private static final int HEADER = 20;
+    // without the bytes of a MVTO.BYTES entry
+    private static final int ENTRY = 20;
+    // entries are mapped a chunk at a time, a chunk is remapped from the first entry it misses
+    private static final int CHUNK = 16 << 20;
+
+    /**
+     * Writes a checkpoint of the current state to dir, next to the segments of log, and
+     * deletes the segments it makes obsolete. The previous checkpoint is replaced atomically.
+     * @return the timestamp of the checkpoint.
+     */
+    public static long take(File dir, WriteAheadLog log) throws Exception {
+        // transactions committed from now on go to segments the checkpoint does not delete
+        log.roll();
+        long xact = MVTO.beginReadOnlyTransaction();
+        long timestamp = MVTO.getSnapshotTimestamp(xact);
+        File tmp = new File(dir, FILE_NAME + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the number of entries, and the end of the last one
+            long[] count = {0, HEADER};
+            MappedByteBuffer[] chunk = new MappedByteBuffer[1];
+            MVTO.scanSnapshot(xact, (key, wts, value, bytes) -> {
+                int length = bytes == null ? ENTRY : ENTRY + bytes.remaining();
+                if (chunk[0] == null || chunk[0].remaining() < length) {
+                    if (chunk[0] != null) {
+                        chunk[0].force();
+                    }
+                    chunk[0] = channel.map(FileChannel.MapMode.READ_WRITE, count[1], Math.max(CHUNK, length));
+                }
+                chunk[0].putInt(key).putLong(wts);
+                if (bytes == null) {
+                    chunk[0].putInt(MVTO.FULL).putInt(value);
+                } else {
+                    chunk[0].putInt(MVTO.BYTES).putInt(bytes.remaining()).put(bytes);
+                }
+                count[0]++;
+                count[1] += length;
+            });
+            if (chunk[0] != null) {
+                chunk[0].force();
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putLong(timestamp).putLong(count[0]);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, HEADER - header.remaining());
+            }
+            channel.truncate(count[1]);
+            channel.force(true);
+        } catch (Exception e) {
+            MVTO.rollback(xact);
+            throw e;
+        }
+        MVTO.commit(xact);
+        Files.move(tmp.toPath(), new File(dir, FILE_NAME).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        log.truncate(timestamp);
+        return timestamp;
+    }
+
+    /**
+     * Restores the checkpoint in dir, if any, then replays the log written after it.
+     * Must be called before the store is used.
+     * @return the log, installed for the commits to come.
+     */
+    public static WriteAheadLog recover(File dir) throws IOException {
+        File file = new File(dir, FILE_NAME);
+        long timestamp = 0;
+        if (file.exists()) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                if (channel.size() < HEADER) {
+                    throw new IOException("Not a checkpoint: " + file);
+                }
+                ByteBuffer header = ByteBuffer.allocate(HEADER);
+                WriteAheadLog.readFully(channel, header, 0);
+                header.flip();
+                if (header.getInt() != MAGIC) {
+                    throw new IOException("Not a checkpoint: " + file);
+                }
+                timestamp = header.getLong();
+                long count = header.getLong();
+                long size = channel.size();
+                long position = HEADER;
+                MappedByteBuffer chunk = null;
+                for (long done = 0; done < count; done++) {
+                    if (chunk == null || !holdsEntry(chunk)) {
+                        chunk = mapEntry(channel, file, position, size);
+                    }
+                    int key = chunk.getInt();
+                    long wts = chunk.getLong();
+                    int kind = chunk.getInt();
+                    int value = chunk.getInt();
+                    if (kind == MVTO.BYTES) {
+                        byte[] bytes = new byte[value];
+                        chunk.get(bytes);
+                        MVTO.restore(key, ByteBuffer.wrap(bytes), wts, timestamp);
+                        position += value;
+                    } else {
+                        MVTO.restore(key, value, wts, timestamp);
+                    }
+                    position += ENTRY;
+                }
+            }
+        }
+        return WriteAheadLog.open(dir, timestamp);
+    }
+
+    // whether the entry at the position of chunk is whole in it
+    private static boolean holdsEntry(ByteBuffer chunk) {
+        if (chunk.remaining() < ENTRY) {
+            return false;
+        }
+        int at = chunk.position();
+        if (chunk.getInt(at + 12) != MVTO.BYTES) {
+            return true;
+        }
+        int bytes = chunk.getInt(at + 16);
+        return bytes >= 0 && chunk.remaining() - ENTRY >= bytes;
+    }
+
+    // maps a chunk from the entry at position on, with the whole entry in it
+    private static MappedByteBuffer mapEntry(FileChannel channel, File file, long position, long size) throws IOException {
+        long length = Math.min(size - position, CHUNK);
+        if (length >= ENTRY) {
+            ByteBuffer fixed = ByteBuffer.allocate(ENTRY);
+            WriteAheadLog.readFully(channel, fixed, position);
+            if (fixed.getInt(12) == MVTO.BYTES && fixed.getInt(16) >= 0) {
+                length = Math.min(size - position, Math.max(length, ENTRY + (long) fixed.getInt(16)));
+            }
+        }
+        MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        if (!holdsEntry(chunk)) {
+            throw new IOException("Truncated checkpoint: " + file);
+        }
+        return chunk;
+    }
+}
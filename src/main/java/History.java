@@ -0,0 +1,400 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * History of the operations clients ran against MVTO, as they saw them, and an offline check
+ * that it is serializable. Each thread records into a buffer of its own; a transaction is
+ * recorded by the thread running it, so its events are in program order in the file.
+ *
+ * File layout, all big-endian: magic | count (long) | count * (type (byte) | xact (long) | key | value),
+ * with the types of Trace. BEGIN, COMMIT and ROLLBACK have neither key nor value. A COMMIT is
+ * only recorded once the commit completed, a transaction without one did not commit.
+ *
+ * The check needs every written value to be unique, so that a read tells which version it
+ * read; Stress writes values from a global counter. java History file prints the report.
+ **/
+class History {
+    private static final int MAGIC = 0x4D564831;
+    private static final int HEADER = 12;
+    private static final int EVENT = 17;
+
+    // report only prints the first anomalies
+    private static final int PRINTED = 20;
+
+    private final ThreadLocal<Recorder> recorders = ThreadLocal.withInitial(this::newRecorder);
+    private final ConcurrentLinkedQueue<Recorder> allRecorders = new ConcurrentLinkedQueue<>();
+
+    // the events of one thread, only ever touched by it until the history is written
+    static final class Recorder {
+        private ByteBuffer events = ByteBuffer.allocate(64 * 1024);
+
+        void record(int type, long xact, int key, int value) {
+            if (events.remaining() < EVENT) {
+                ByteBuffer grown = ByteBuffer.allocate(events.capacity() * 2);
+                events.flip();
+                grown.put(events);
+                events = grown;
+            }
+            events.put((byte) type).putLong(xact).putInt(key).putInt(value);
+        }
+    }
+
+    // the recorder of the calling thread
+    Recorder recorder() {
+        return recorders.get();
+    }
+
+    /**
+     * Writes the events of every thread to file; the threads must be done recording.
+     */
+    void write(File file) throws IOException {
+        long count = 0;
+        for (Recorder recorder: allRecorders) {
+            count += recorder.events.position() / EVENT;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeLong(count);
+            for (Recorder recorder: allRecorders) {
+                out.write(recorder.events.array(), 0, recorder.events.position());
+            }
+        }
+    }
+
+    private Recorder newRecorder() {
+        Recorder recorder = new Recorder();
+        allRecorders.add(recorder);
+        return recorder;
+    }
+
+    /**
+     * Checks that the committed transactions of the history in file are serializable: builds
+     * their multiversion serialization graph and looks for a cycle in it. Versions of a key
+     * are ordered by the timestamps of their writers, the order MVTO serializes them in. As a
+     * cycle through any version order goes through the consecutive ones, the graph only gets
+     * an edge from each version to the next one, from its writer to each of its readers, and
+     * from each of its readers to the writer of the next version, so it takes O(n log n).
+     * @return the anomalies found, empty if the history is serializable.
+     */
+    static List<String> check(File file, StringBuilder summary) throws IOException {
+        long start = System.nanoTime();
+        List<String> anomalies = new ArrayList<>();
+        byte[] type;
+        long[] xact;
+        int[] key;
+        int[] value;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            WriteAheadLog.readFully(channel, header, 0);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("Not a history: " + file);
+            }
+            long count = header.getLong(4);
+            if (count > Integer.MAX_VALUE || HEADER + count * EVENT > channel.size()) {
+                throw new IOException("The history " + file + " is truncated.");
+            }
+            int n = (int) count;
+            type = new byte[n];
+            xact = new long[n];
+            key = new int[n];
+            value = new int[n];
+            // a mapping covers at most 2 GB, map a whole number of events at a time
+            int perChunk = Integer.MAX_VALUE / EVENT;
+            for (int done = 0; done < n; ) {
+                int events = Math.min(n - done, perChunk);
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, HEADER + (long) done * EVENT, (long) events * EVENT);
+                for (int e = done; e < done + events; e++) {
+                    type[e] = chunk.get();
+                    xact[e] = chunk.getLong();
+                    key[e] = chunk.getInt();
+                    value[e] = chunk.getInt();
+                }
+                done += events;
+            }
+        }
+        int n = type.length;
+
+        // the committed transactions, numbered in timestamp order
+        long[] committed = distinct(xact, type, MVTO.Trace.COMMIT);
+        long aborted = distinct(xact, type, MVTO.Trace.ROLLBACK).length;
+        int[] rank = new int[n];
+        int reads = 0;
+        int writes = 0;
+        for (int e = 0; e < n; e++) {
+            rank[e] = Arrays.binarySearch(committed, xact[e]);
+            if (type[e] == MVTO.Trace.READ) {
+                reads++;
+            } else if (isWrite(type[e])) {
+                writes++;
+            }
+        }
+
+        // every write by value, to tell which one a read saw
+        long[] byValue = new long[writes];
+        // the writes of committed transactions by key, then writer; a writer's last one of a key is its version
+        long[] byVersion = new long[writes];
+        int[] versionEvent = new int[writes];
+        int committedWrites = 0;
+        for (int e = 0, w = 0; e < n; e++) {
+            if (isWrite(type[e])) {
+                byValue[w++] = (long) value[e] << 32 | e;
+                if (rank[e] >= 0) {
+                    byVersion[committedWrites] = (long) key[e] << 32 | rank[e];
+                    versionEvent[committedWrites++] = e;
+                }
+            }
+        }
+        Arrays.sort(byValue);
+        for (int w = 1; w < writes; w++) {
+            if (byValue[w] >> 32 == byValue[w - 1] >> 32) {
+                anomalies.add("Value " + value[(int) byValue[w]] + " is written twice, reads of it are ambiguous.");
+            }
+        }
+        sortStably(byVersion, versionEvent, committedWrites);
+        boolean[] overwritten = new boolean[n];
+        int versions = 0;
+        for (int w = 0; w < committedWrites; w++) {
+            if (w + 1 < committedWrites && byVersion[w + 1] == byVersion[w]) {
+                // a later write of the same transaction to the same key replaced it
+                overwritten[versionEvent[w]] = true;
+            } else {
+                byVersion[versions] = byVersion[w];
+                versionEvent[versions++] = versionEvent[w];
+            }
+        }
+
+        Graph graph = new Graph(committed.length);
+        for (int v = 1; v < versions; v++) {
+            if (byVersion[v] >> 32 == byVersion[v - 1] >> 32) {
+                graph.add((int) byVersion[v - 1], (int) byVersion[v]);
+            }
+        }
+        for (int e = 0; e < n; e++) {
+            if (type[e] != MVTO.Trace.READ || rank[e] < 0) {
+                continue;
+            }
+            int w = find(byValue, value[e]);
+            if (w < 0) {
+                anomalies.add("Transaction " + xact[e] + " read " + value[e] + " from key " + key[e] + ", which no one wrote.");
+                continue;
+            }
+            int written = (int) byValue[w];
+            if (key[written] != key[e]) {
+                anomalies.add("Transaction " + xact[e] + " read " + value[e] + " from key " + key[e] + " but it was written to key " + key[written] + ".");
+            } else if (rank[written] < 0) {
+                anomalies.add("Transaction " + xact[e] + " read " + value[e] + " from key " + key[e] + ", written by " + xact[written] + " which did not commit.");
+            } else if (overwritten[written] && rank[written] != rank[e]) {
+                anomalies.add("Transaction " + xact[e] + " read " + value[e] + " from key " + key[e] + ", which " + xact[written] + " overwrote before committing.");
+            } else if (rank[written] != rank[e]) {
+                graph.add(rank[written], rank[e]);
+                int v = Arrays.binarySearch(byVersion, 0, versions, (long) key[e] << 32 | rank[written]);
+                if (v + 1 < versions && byVersion[v + 1] >> 32 == key[e] && (int) byVersion[v + 1] != rank[e]) {
+                    graph.add(rank[e], (int) byVersion[v + 1]);
+                }
+            }
+        }
+        int[] cycle = graph.findCycle();
+        if (cycle != null) {
+            StringBuilder text = new StringBuilder("The committed transactions are not serializable, they depend on each other in a cycle:");
+            for (int node: cycle) {
+                text.append(' ').append(committed[node]).append(" ->");
+            }
+            anomalies.add(text.append(' ').append(committed[cycle[0]]).toString());
+        }
+        summary.append(n).append(" events, ").append(committed.length).append(" committed and ").append(aborted)
+                .append(" rolled back transactions, ").append(reads).append(" reads, ").append(writes).append(" writes, ")
+                .append(versions).append(" versions, ").append(graph.edges).append(" dependencies, checked in ")
+                .append((System.nanoTime() - start) / 1000000).append(" ms");
+        return anomalies;
+    }
+
+    /**
+     * Checks the history in file and prints what check found to out.
+     * @return whether it is serializable.
+     */
+    static boolean report(File file, PrintStream out) throws IOException {
+        StringBuilder summary = new StringBuilder();
+        List<String> anomalies = check(file, summary);
+        out.println(summary);
+        for (String anomaly: anomalies.subList(0, Math.min(anomalies.size(), PRINTED))) {
+            out.println(anomaly);
+        }
+        out.println(anomalies.isEmpty() ? "Serializable." : anomalies.size() + " anomalies.");
+        return anomalies.isEmpty();
+    }
+
+    private static boolean isWrite(int type) {
+        return type == MVTO.Trace.WRITE || type == MVTO.Trace.INSERT;
+    }
+
+    // the transactions with an event of type, sorted
+    private static long[] distinct(long[] xact, byte[] type, int of) {
+        long[] found = new long[xact.length];
+        int count = 0;
+        for (int e = 0; e < xact.length; e++) {
+            if (type[e] == of) {
+                found[count++] = xact[e];
+            }
+        }
+        Arrays.sort(found, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || found[i] != found[distinct - 1]) {
+                found[distinct++] = found[i];
+            }
+        }
+        return Arrays.copyOf(found, distinct);
+    }
+
+    // index in byValue of the write of value, -1 if there is none
+    private static int find(long[] byValue, int value) {
+        int i = Arrays.binarySearch(byValue, (long) value << 32);
+        i = i < 0 ? -i - 1 : i;
+        return i < byValue.length && byValue[i] >> 32 == value ? i : -1;
+    }
+
+    // sorts the first n keys, and items with them, keeping items with equal keys in order
+    private static void sortStably(long[] keys, int[] items, int n) {
+        long[] keysTo = new long[n];
+        int[] itemsTo = new int[n];
+        int[] counts = new int[1 << 16];
+        // radix sort, 16 bits at a time from the lowest; the sign bit is flipped to sort negative keys first
+        for (int shift = 0; shift < 64; shift += 16) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < n; i++) {
+                counts[digit(keys[i], shift)]++;
+            }
+            for (int d = 0, sum = 0; d < counts.length; d++) {
+                int c = counts[d];
+                counts[d] = sum;
+                sum += c;
+            }
+            for (int i = 0; i < n; i++) {
+                int at = counts[digit(keys[i], shift)]++;
+                keysTo[at] = keys[i];
+                itemsTo[at] = items[i];
+            }
+            System.arraycopy(keysTo, 0, keys, 0, n);
+            System.arraycopy(itemsTo, 0, items, 0, n);
+        }
+    }
+
+    private static int digit(long key, int shift) {
+        return (int) ((key ^ Long.MIN_VALUE) >>> shift) & 0xFFFF;
+    }
+
+    // directed graph over the committed transactions, built from a list of edges
+    private static final class Graph {
+        private final int nodes;
+        private int[] from = new int[1024];
+        private int[] to = new int[1024];
+        private int edges;
+
+        Graph(int nodes) {
+            this.nodes = nodes;
+        }
+
+        void add(int source, int target) {
+            if (edges == from.length) {
+                from = Arrays.copyOf(from, edges * 2);
+                to = Arrays.copyOf(to, edges * 2);
+            }
+            from[edges] = source;
+            to[edges++] = target;
+        }
+
+        /**
+         * Removes the nodes without predecessors until none is left (Kahn); the ones that stay
+         * all have a predecessor that stays, so walking back from one of them runs into a cycle.
+         * @return the nodes of a cycle in edge order, null if there is none.
+         */
+        int[] findCycle() {
+            int[] inDegree = new int[nodes];
+            int[] firstIn = new int[nodes + 1];
+            int[] firstOut = new int[nodes + 1];
+            for (int e = 0; e < edges; e++) {
+                inDegree[to[e]]++;
+                firstIn[to[e] + 1]++;
+                firstOut[from[e] + 1]++;
+            }
+            for (int v = 0; v < nodes; v++) {
+                firstIn[v + 1] += firstIn[v];
+                firstOut[v + 1] += firstOut[v];
+            }
+            int[] sources = new int[edges];
+            int[] targets = new int[edges];
+            int[] nextIn = Arrays.copyOf(firstIn, nodes);
+            int[] nextOut = Arrays.copyOf(firstOut, nodes);
+            for (int e = 0; e < edges; e++) {
+                sources[nextIn[to[e]]++] = from[e];
+                targets[nextOut[from[e]]++] = to[e];
+            }
+            int[] queue = new int[nodes];
+            int head = 0;
+            int tail = 0;
+            for (int v = 0; v < nodes; v++) {
+                if (inDegree[v] == 0) {
+                    queue[tail++] = v;
+                }
+            }
+            while (head < tail) {
+                int v = queue[head++];
+                for (int e = firstOut[v]; e < firstOut[v + 1]; e++) {
+                    if (--inDegree[targets[e]] == 0) {
+                        queue[tail++] = targets[e];
+                    }
+                }
+            }
+            if (tail == nodes) {
+                return null;
+            }
+            int v = 0;
+            while (inDegree[v] == 0) {
+                v++;
+            }
+            // walk back through predecessors that stay until a node comes up again
+            int[] seenAt = new int[nodes];
+            Arrays.fill(seenAt, -1);
+            int[] path = new int[nodes];
+            int length = 0;
+            while (seenAt[v] < 0) {
+                seenAt[v] = length;
+                path[length++] = v;
+                int e = firstIn[v];
+                while (inDegree[sources[e]] == 0) {
+                    e++;
+                }
+                v = sources[e];
+            }
+            int[] cycle = Arrays.copyOfRange(path, seenAt[v], length);
+            // the walk went against the edges
+            for (int i = 0, j = cycle.length - 1; i < j; i++, j--) {
+                int swap = cycle[i];
+                cycle[i] = cycle[j];
+                cycle[j] = swap;
+            }
+            return cycle;
+        }
+    }
+
+    // java History file
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: java History <history file>");
+            System.exit(2);
+        }
+        System.exit(report(new File(args[0]), System.out) ? 0 : 1);
+    }
+}
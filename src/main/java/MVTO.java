@@ -1,6 +1,37 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.*;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.logging.Logger;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
 
 /**
  * implement a (main-memory) data store with MVTO.
@@ -15,269 +46,3396 @@ import java.util.logging.Logger;
  **/
 
 
+/**
+ * The interface above, on a single Partition holding the whole store. See PartitionedMVTO for
+ * a store split over several.
+ */
 public class MVTO {
 
-    private static HashMap<Integer, Transaction> activeTransactionsById = new HashMap<>();
+    private static final Partition store = new Partition(0, 1);
+
+    // returns transaction id == logical start timestamp
+    public static int begin_transaction() {
+        return toInt(beginTransaction());
+    }
+
+    /**
+     * Like begin_transaction, but with the 64-bit timestamp every other operation takes: the
+     * int one only covers the first 2^31 timestamps.
+     */
+    public static long beginTransaction() {
+        return store.beginTransaction();
+    }
+
+    public static int begin_read_only_transaction() {
+        return toInt(beginReadOnlyTransaction());
+    }
+
+    /**
+     * Begins a transaction that reads the snapshot left by every read-write transaction older
+     * than the oldest active one. Its reads neither update read timestamps nor wait for other
+     * transactions, so it never aborts and never makes a writer abort.
+     */
+    public static long beginReadOnlyTransaction() {
+        return store.beginReadOnlyTransaction();
+    }
+
+    // create and initialize new object in transaction xact
+    public static void insert(long xact, int key, int value) throws Exception {
+        store.insert(xact, key, value);
+    }
+
+    /**
+     * Inserts keys[i] with values[i] for every i in xact, with a single transaction lookup and
+     * in key order. If one of the inserts is refused, xact is rolled back with everything it
+     * wrote, as insert does.
+     */
+    public static void insertMany(long xact, int[] keys, int[] values) throws Exception {
+        store.insertMany(xact, keys, values);
+    }
+
+    // return value of object key in transaction xact
+    public static int read(long xact, int key) throws Exception {
+        return store.read(xact, key);
+    }
+
+    /**
+     * Reads keys in xact with a single transaction lookup, in key order. Every key is looked
+     * up before the first one is read. A read from a rolled back transaction rolls xact back,
+     * as read does.
+     * @return the values, in the order of keys.
+     */
+    public static int[] readMany(long xact, int[] keys) throws Exception {
+        return store.readMany(xact, keys);
+    }
+
+    /**
+     * Reads, in xact, every key from fromKey to toKey, both included, that has a version
+     * visible to xact. The reads raise read timestamps and make xact wait for their writers like
+     * read does. The gaps between the keys are marked as read as well, so that a transaction
+     * older than xact can no longer insert into the range: it is rolled back if it tries.
+     * @return the values by key.
+     */
+    public static SortedMap<Integer, Integer> scan(long xact, int fromKey, int toKey) throws Exception {
+        return store.scan(xact, fromKey, toKey);
+    }
+
+    // write value of existing object identified by key in transaction xact
+    public static void write(long xact, int key, int value) throws Exception {
+        store.write(xact, key, value);
+    }
+
+    /**
+     * Writes values[i] to keys[i] for every i in xact, with a single transaction lookup and in
+     * key order; a key given twice ends up with its last value. Every key is looked up before
+     * the first one is written. If a write is refused, xact is rolled back with everything it
+     * wrote, as write does, and unlike write an exception tells the caller.
+     */
+    public static void writeMany(long xact, int[] keys, int[] values) throws Exception {
+        store.writeMany(xact, keys, values);
+    }
+
+    /**
+     * Adds delta to the value of key in xact without reading it: the increment is a DELTA
+     * version that reads add up, so increments of younger transactions neither make xact wait
+     * nor raise the read timestamps that would refuse it. As with write, xact is rolled back
+     * if a younger transaction read the value the increment applies to; unlike write, an
+     * exception tells the caller.
+     */
+    public static void increment(long xact, int key, int delta) throws Exception {
+        store.increment(xact, key, delta);
+    }
+
+    /**
+     * Reads key in xact, as read does, and writes newValue to it if the value read is expected,
+     * in a single call. MVTO keeps the two atomic: the read raises the read timestamp that
+     * refuses any older write in between.
+     * @return whether the value was expected, and replaced.
+     */
+    public static boolean compareAndSet(long xact, int key, int expected, int newValue) throws Exception {
+        return store.compareAndSet(xact, key, expected, newValue);
+    }
+
+    /**
+     * Like insert, with the remaining bytes of value, copied once, as the value of key. The
+     * int operations refuse keys that hold bytes, with an exception.
+     */
+    public static void insertBytes(long xact, int key, ByteBuffer value) throws Exception {
+        store.insertBytes(xact, key, value);
+    }
+
+    /**
+     * Like read, but returns a read-only view of the stored bytes instead of copying them, or
+     * the four bytes of the value of a key that holds an int.
+     */
+    public static ByteBuffer readBytes(long xact, int key) throws Exception {
+        return store.readBytes(xact, key);
+    }
+
+    /**
+     * Like write, with the remaining bytes of value, copied once. If they are the bytes of the
+     * version the write replaces, both versions share one buffer. Unlike write, an exception
+     * tells the caller when xact is rolled back.
+     */
+    public static void writeBytes(long xact, int key, ByteBuffer value) throws Exception {
+        store.writeBytes(xact, key, value);
+    }
+
+    /**
+     * Requests the commit of xact. If xact still waits for transactions it read from, it commits
+     * as soon as the last of them does; use commitAsync to find out when that happens, and, with
+     * a commit log installed, when its writes are durable.
+     */
+    public static void commit(long xact) throws Exception {
+        store.commit(xact);
+    }
+
+    /**
+     * Requests the commit of xact without waiting for it.
+     * @return a future completed once xact has committed, or completed exceptionally
+     *         once xact has been rolled back or if it is not active.
+     */
+    public static CompletableFuture<Void> commitAsync(long xact) {
+        return store.commitAsync(xact);
+    }
+
+    public static void rollback(long xact) throws Exception {
+        store.rollback(xact);
+    }
+
+    /**
+     * Prunes every version chain once with a freshly computed low watermark.
+     * @return the number of versions reclaimed by this pass.
+     */
+    public static long collectGarbage() {
+        return store.collectGarbage();
+    }
+
+    /**
+     * Runs collectGarbage in a background thread every periodMillis milliseconds.
+     * Writes also prune the chain they touch, using the watermark of the last pass.
+     */
+    public static void startGarbageCollector(long periodMillis) {
+        store.startGarbageCollector(periodMillis);
+    }
+
+    public static void stopGarbageCollector() {
+        store.stopGarbageCollector();
+    }
+
+    /**
+     * Keeps the versions of keys inserted or restored from now on in direct memory rather than
+     * on the heap, so that very large stores do not make the garbage collector trace every
+     * version. Also enabled by -Dmvto.offheap=true. Existing keys keep their storage.
+     */
+    public static void setOffHeapStorage(boolean enabled) {
+        Partition.offHeapStorage = enabled;
+    }
+
+    /**
+     * @return the direct memory reserved for versions, in bytes.
+     */
+    public static long getOffHeapBytes() {
+        return OffHeapValue.ARENA.getReservedBytes();
+    }
+
+    /**
+     * Starts recording every operation in a new trace that keeps the last eventsPerThread
+     * events of each thread; also started by -Dmvto.trace=eventsPerThread. See Trace.
+     */
+    public static void startTracing(int eventsPerThread) {
+        Trace.start(eventsPerThread);
+    }
+
+    public static void stopTracing() {
+        Trace.stop();
+    }
+
+    /**
+     * Writes the events of the last trace started, oldest first, in the binary form that
+     * java 'MVTO$Trace' file decodes.
+     */
+    public static void dumpTrace(OutputStream out) throws IOException {
+        Trace.dump(out);
+    }
+
+    /**
+     * @return the counters and histograms of the engine, see Metrics.
+     */
+    static Metrics getMetrics() {
+        return store.getMetrics();
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server as MVTO:type=Metrics.
+     */
+    public static void registerMetricsMBean() throws JMException {
+        store.registerMetricsMBean(Metrics.OBJECT_NAME);
+    }
+
+    /**
+     * @return the total number of versions reclaimed so far.
+     */
+    public static long getReclaimedVersionCount() {
+        return store.getReclaimedVersionCount();
+    }
+
+    public static long getLowWatermark() {
+        return store.getLowWatermark();
+    }
+
+    // whether xact began and neither committed nor rolled back yet
+    static boolean isActive(long xact) {
+        return store.isActive(xact);
+    }
+
+    /**
+     * @return the timestamp the read-only transaction xact reads at.
+     */
+    static long getSnapshotTimestamp(long xact) throws Exception {
+        return store.getSnapshotTimestamp(xact);
+    }
+
+    /**
+     * Visits, for every key, the version the read-only transaction xact reads.
+     * Keys inserted after the snapshot may or may not be visited.
+     */
+    static void scanSnapshot(long xact, VersionVisitor visitor) throws Exception {
+        store.scanSnapshot(xact, visitor);
+    }
+
+    /**
+     * Installs the log that makes commits durable, or removes it when log is null.
+     */
+    static void setCommitLog(CommitLog log) {
+        store.setCommitLog(log);
+    }
+
+    static void restore(int key, int value, long wts, long xact) {
+        store.restore(key, value, wts, xact);
+    }
+
+    /**
+     * Adds a committed version of key found while recovering, unless its chain has one written
+     * at wts already. Transactions are logged in commit order, which is not the timestamp order
+     * deltas add up in, so the chains are collapsed by a garbage collection once recovery is
+     * done. Only meant to be called before the store is used, while no transaction is active.
+     */
+    static void restore(int key, int value, long wts, int kind, long xact) {
+        store.restore(key, value, wts, kind, xact);
+    }
+
+    // restores a BYTES version, see restore
+    static void restore(int key, ByteBuffer bytes, long wts, long xact) {
+        store.restore(key, bytes, wts, xact);
+    }
+
+    private static int toInt(long xact) {
+        if (xact > Integer.MAX_VALUE) {
+            store.rollback(xact, AbortCause.USER);
+            throw new IllegalStateException("Timestamp " + xact + " does not fit in an int, use beginTransaction.");
+        }
+        return (int) xact;
+    }
+
+    // the kinds of logged versions: a value, a delta added to the value before it, or bytes
+    static final int FULL = Value.FULL;
+    static final int DELTA = Value.DELTA;
+    static final int BYTES = Value.BYTES;
+
+    /**
+     * Durable record of committed transactions, see WriteAheadLog.
+     */
+    interface CommitLog {
+        /**
+         * Called in commit order, after txn is finished and before its versions become visible as
+         * committed; the entries of txn's log do not change anymore. The log must call
+         * txn.complete() once the record is durable, or txn.complete(cause) if it cannot be.
+         */
+        void append(Commit txn);
+    }
+
+    /**
+     * A committing transaction as a CommitLog sees it: the i-th version it wrote is of
+     * getLoggedKey(i), written at getLoggedWts(i), and holds getLoggedContent(i), or the bytes
+     * getLoggedBytes(i) if its kind is BYTES.
+     */
+    interface Commit {
+        long getTimestamp();
+
+        int getLogSize();
+
+        int getLoggedKey(int i);
+
+        long getLoggedWts(int i);
+
+        int getLoggedKind(int i);
+
+        int getLoggedContent(int i);
+
+        ByteBuffer getLoggedBytes(int i);
+
+        void complete();
+
+        void complete(Throwable failure);
+    }
+
+    /**
+     * Binary trace of the operations of the engine. Each thread records into a ring of its own,
+     * four longs per event: System.nanoTime | type | xact | key, value. A ring has a single writer
+     * that publishes an event by advancing its count after writing it, so recording takes neither
+     * a lock nor an atomic read-modify-write and never allocates; the oldest events are overwritten
+     * once a ring is full. While tracing is off, recording costs one read of a static field.
+     *
+     * dump merges the rings by time into events of long time | long thread | int type |
+     * long xact | int key | int value after an int magic and a long count;
+     * java 'MVTO$Trace' file prints them as text.
+     */
+    static final class Trace {
+        static final int BEGIN = 1;
+        static final int BEGIN_READ_ONLY = 2;
+        static final int INSERT = 3;
+        static final int READ = 4;
+        static final int WRITE = 5;
+        static final int COMMIT = 6;
+        static final int ROLLBACK = 7;
+        static final int SCAN = 8;
+        static final int INCREMENT = 9;
+        // the value of the BYTES events is the number of bytes
+        static final int INSERT_BYTES = 10;
+        static final int READ_BYTES = 11;
+        static final int WRITE_BYTES = 12;
+
+        private static final int MAGIC = 0x4D565432;
+        private static final int EVENT = 4;
+
+        // the trace being recorded, null while tracing is off
+        private static volatile Trace active;
+        // the trace dump reads, kept after stop
+        private static volatile Trace last;
+
+        private final int capacity;
+        private final ThreadLocal<Ring> rings = ThreadLocal.withInitial(this::newRing);
+        private final Queue<Ring> allRings = new ConcurrentLinkedQueue<>();
+
+        static {
+            int eventsPerThread = Integer.getInteger("mvto.trace", 0);
+            if (eventsPerThread > 0) {
+                start(eventsPerThread);
+            }
+        }
+
+        private Trace(int eventsPerThread) {
+            this.capacity = Integer.highestOneBit(Math.max(eventsPerThread - 1, 1)) << 1;
+        }
+
+        static void record(int type, long xact, int key, int value) {
+            Trace trace = active;
+            if (trace != null) {
+                trace.rings.get().append(type, xact, key, value);
+            }
+        }
+
+        // the snapshot takes the place of both the key and the value
+        static void recordReadOnly(long xact, long snapshot) {
+            record(BEGIN_READ_ONLY, xact, (int) (snapshot >>> 32), (int) snapshot);
+        }
+
+        static void start(int eventsPerThread) {
+            Trace trace = new Trace(eventsPerThread);
+            last = trace;
+            active = trace;
+        }
+
+        static void stop() {
+            active = null;
+        }
+
+        static void dump(OutputStream out) throws IOException {
+            Trace trace = last;
+            List<long[]> events = new ArrayList<>();
+            if (trace != null) {
+                for (Ring ring: trace.allRings) {
+                    ring.copyTo(events);
+                }
+            }
+            events.sort((a, b) -> Long.compare(a[0], b[0]));
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            data.writeInt(MAGIC);
+            data.writeLong(events.size());
+            for (long[] event: events) {
+                data.writeLong(event[0]);
+                data.writeLong(event[1]);
+                data.writeInt((int) event[2]);
+                data.writeLong(event[3]);
+                data.writeInt((int) (event[4] >>> 32));
+                data.writeInt((int) event[4]);
+            }
+            data.flush();
+        }
+
+        // receives the events of a dump, see read
+        interface Visitor {
+            void event(long time, long thread, int type, long xact, int key, int value) throws IOException;
+        }
+
+        /**
+         * Passes the events of a dump to visitor, in time order.
+         */
+        static void read(InputStream in, Visitor visitor) throws IOException {
+            DataInputStream data = new DataInputStream(in);
+            if (data.readInt() != MAGIC) {
+                throw new IOException("Not a trace.");
+            }
+            long count = data.readLong();
+            for (long i = 0; i < count; i++) {
+                long time;
+                try {
+                    time = data.readLong();
+                } catch (EOFException e) {
+                    throw new IOException("The trace ends after " + i + " of " + count + " events.");
+                }
+                long thread = data.readLong();
+                int type = data.readInt();
+                long xact = data.readLong();
+                int key = data.readInt();
+                visitor.event(time, thread, type, xact, key, data.readInt());
+            }
+        }
+
+        /**
+         * Prints a dump as one line per event: microseconds since the first event, the thread, and
+         * what the event used to log.
+         */
+        static void decode(InputStream in, PrintStream out) throws IOException {
+            long[] first = {-1};
+            read(in, (time, thread, type, xact, key, value) -> {
+                if (first[0] < 0) {
+                    first[0] = time;
+                }
+                out.printf("%10.3f T%d %s%n", (time - first[0]) / 1000.0, thread, describe(type, xact, key, value));
+            });
+        }
+
+        static String describe(int type, long xact, int key, int value) {
+            switch (type) {
+                case BEGIN:
+                    return "Begin transaction " + xact;
+                case BEGIN_READ_ONLY:
+                    return "Begin read-only transaction " + xact + " at " + ((long) key << 32 | value & 0xFFFFFFFFL);
+                case INSERT:
+                    return "Insert issued for " + xact + " => {" + key + "," + value + "}";
+                case READ:
+                    return "Read issued for " + xact + " => {" + key + "," + value + "}";
+                case WRITE:
+                    return "Write issued for " + xact + " => {" + key + "," + value + "}";
+                case COMMIT:
+                    return "Commit issued for " + xact;
+                case ROLLBACK:
+                    return "Rollback " + xact;
+                case INCREMENT:
+                    return "Increment issued for " + xact + " => {" + key + ",+" + value + "}";
+                case SCAN:
+                    return "Scan issued for " + xact + " => [" + key + "," + value + "]";
+                case INSERT_BYTES:
+                    return "Insert issued for " + xact + " => {" + key + "," + value + " bytes}";
+                case READ_BYTES:
+                    return "Read issued for " + xact + " => {" + key + "," + value + " bytes}";
+                case WRITE_BYTES:
+                    return "Write issued for " + xact + " => {" + key + "," + value + " bytes}";
+                default:
+                    return "Unknown event " + type + " of " + xact;
+            }
+        }
+
+        // java 'MVTO$Trace' file
+        public static void main(String[] args) throws IOException {
+            if (args.length != 1) {
+                System.err.println("Usage: java 'MVTO$Trace' <trace file>");
+                System.exit(2);
+            }
+            try (InputStream in = new FileInputStream(args[0])) {
+                decode(in, System.out);
+            }
+        }
+
+        private Ring newRing() {
+            Ring ring = new Ring(Thread.currentThread().getId(), capacity);
+            allRings.add(ring);
+            return ring;
+        }
+
+        private static final class Ring {
+            private final long thread;
+            private final AtomicLongArray slots;
+            private final int mask;
+            // events recorded so far, published after the event they count
+            private final AtomicLong written = new AtomicLong();
+            // only touched by the owning thread
+            private long next;
+
+            Ring(long thread, int capacity) {
+                this.thread = thread;
+                this.slots = new AtomicLongArray(capacity * EVENT);
+                this.mask = capacity - 1;
+            }
+
+            void append(int type, long xact, int key, int value) {
+                int i = (int) (next & mask) * EVENT;
+                slots.lazySet(i, System.nanoTime());
+                slots.lazySet(i + 1, type);
+                slots.lazySet(i + 2, xact);
+                slots.lazySet(i + 3, (long) key << 32 | (value & 0xFFFFFFFFL));
+                written.lazySet(++next);
+            }
+
+            // copies the events that were not overwritten while copying, as time | thread | type | xact | key, value
+            void copyTo(List<long[]> events) {
+                long end = written.get();
+                long begin = Math.max(0, end - (mask + 1));
+                long[][] copied = new long[(int) (end - begin)][];
+                for (long seq = begin; seq < end; seq++) {
+                    int i = (int) (seq & mask) * EVENT;
+                    copied[(int) (seq - begin)] = new long[] {slots.get(i), thread, slots.get(i + 1), slots.get(i + 2), slots.get(i + 3)};
+                }
+                // the writer may be overwriting the slot of the oldest event still
+                long intact = written.get() - mask;
+                for (long seq = Math.max(begin, intact); seq < end; seq++) {
+                    events.add(copied[(int) (seq - begin)]);
+                }
+            }
+        }
+    }
+
+    /**
+     * The interface of MVTO on a store whose keys are spread over partitions, one per core by
+     * default, each with its own versions, active transactions and timestamp counter. A
+     * transaction begins in one partition and only touches that one as long as its keys are
+     * there: clients that know where their keys are begin in partitionOf(key), others in the
+     * partition of their thread. The first key of another partition makes the transaction a
+     * TransactionGroup, with a part in every partition it goes to, which commits or rolls back
+     * with all of them. Read-only transactions and scans read every partition.
+     *
+     * A group keeps the timestamp it began with, so it cannot go to a partition whose watermark
+     * passed it; it is rolled back then, but the partition it began in moves its clock past that
+     * of the other one, so that it does not happen to the next transaction. Durability and the
+     * batch operations are only available on MVTO.
+     */
+    static final class PartitionedMVTO {
+        private final Partition[] partitions;
+        private ScheduledExecutorService garbageCollector;
+
+        PartitionedMVTO() {
+            this(Runtime.getRuntime().availableProcessors());
+        }
+
+        PartitionedMVTO(int partitions) {
+            this.partitions = new Partition[partitions];
+            for (int i = 0; i < partitions; i++) {
+                this.partitions[i] = new Partition(i, partitions);
+            }
+        }
+
+        public int getPartitionCount() {
+            return partitions.length;
+        }
+
+        /**
+         * @return the partition key is kept in.
+         */
+        public int partitionOf(int key) {
+            // spreads neighbouring keys, then maps the hash onto the partitions without a division
+            return (int) ((Integer.toUnsignedLong(key * 0x9E3779B9) * partitions.length) >>> 32);
+        }
+
+        public long beginTransaction() {
+            return home().beginTransaction();
+        }
+
+        /**
+         * Begins a transaction in the given partition, where it runs without touching any other
+         * as long as its keys are there.
+         */
+        public long beginTransaction(int partition) {
+            return partitions[partition].beginTransaction();
+        }
+
+        /**
+         * Begins a read-only transaction that has a part in every partition, all reading at the
+         * same snapshot: the oldest of the snapshots of the partitions.
+         */
+        public long beginReadOnlyTransaction() {
+            Partition home = home();
+            for (boolean retry = false; ; retry = true) {
+                long latest = 0;
+                for (Partition partition: partitions) {
+                    latest = Math.max(latest, partition.clock());
+                }
+                long candidate = Long.MAX_VALUE;
+                for (Partition partition: partitions) {
+                    // so that an idle partition does not hold the snapshot back
+                    partition.observe(latest);
+                    candidate = Math.min(candidate, partition.snapshotCandidate());
+                }
+                long snapshot = candidate;
+                for (Partition partition: partitions) {
+                    snapshot = Math.min(snapshot, partition.computeSnapshotTimestamp(candidate));
+                }
+                long xact = retry ? home.freshTimestamp() : home.nextTimestamp();
+                TransactionGroup group = new TransactionGroup(partitions.length);
+                boolean joined = true;
+                for (int i = 0; i < partitions.length && joined; i++) {
+                    joined = partitions[i].joinReadOnly(group, xact, snapshot);
+                }
+                if (joined) {
+                    MVTO.Trace.recordReadOnly(xact, snapshot);
+                    return xact;
+                }
+                // a concurrent watermark computation missed us, take a newer snapshot
+                Partition.discard(group);
+            }
+        }
+
+        public void insert(long xact, int key, int value) throws Exception {
+            partitionFor(xact, key).insert(xact, key, value);
+        }
+
+        public int read(long xact, int key) throws Exception {
+            return partitionFor(xact, key).read(xact, key);
+        }
+
+        public void write(long xact, int key, int value) throws Exception {
+            partitionFor(xact, key).write(xact, key, value);
+        }
+
+        public void increment(long xact, int key, int delta) throws Exception {
+            partitionFor(xact, key).increment(xact, key, delta);
+        }
+
+        public void insertBytes(long xact, int key, ByteBuffer value) throws Exception {
+            partitionFor(xact, key).insertBytes(xact, key, value);
+        }
+
+        public ByteBuffer readBytes(long xact, int key) throws Exception {
+            return partitionFor(xact, key).readBytes(xact, key);
+        }
+
+        public void writeBytes(long xact, int key, ByteBuffer value) throws Exception {
+            partitionFor(xact, key).writeBytes(xact, key, value);
+        }
+
+        public boolean compareAndSet(long xact, int key, int expected, int newValue) throws Exception {
+            return partitionFor(xact, key).compareAndSet(xact, key, expected, newValue);
+        }
+
+        /**
+         * Scans every partition, see MVTO.scan; the gaps between the keys of each partition are
+         * guarded in that partition.
+         */
+        public SortedMap<Integer, Integer> scan(long xact, int fromKey, int toKey) throws Exception {
+            SortedMap<Integer, Integer> result = new TreeMap<>();
+            Partition home = home(xact);
+            for (Partition partition: partitions) {
+                if (partition != home) {
+                    join(home, partition, xact);
+                }
+                result.putAll(partition.scan(xact, fromKey, toKey));
+            }
+            return result;
+        }
+
+        public void commit(long xact) throws Exception {
+            home(xact).commit(xact);
+        }
+
+        public CompletableFuture<Void> commitAsync(long xact) {
+            return home(xact).commitAsync(xact);
+        }
+
+        public void rollback(long xact) throws Exception {
+            home(xact).rollback(xact);
+        }
+
+        /**
+         * Prunes every partition with one watermark, the oldest of all, so that a transaction can
+         * still go to any partition at a timestamp one of them accepts.
+         * @return the number of versions reclaimed by this pass.
+         */
+        public long collectGarbage() {
+            long candidate = Long.MAX_VALUE;
+            for (Partition partition: partitions) {
+                candidate = Math.min(candidate, partition.watermarkCandidate());
+            }
+            long reclaimed = 0;
+            for (Partition partition: partitions) {
+                reclaimed += partition.collectGarbage(candidate);
+            }
+            return reclaimed;
+        }
+
+        public synchronized void startGarbageCollector(long periodMillis) {
+            if (garbageCollector != null) {
+                return;
+            }
+            garbageCollector = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "mvto-gc");
+                t.setDaemon(true);
+                return t;
+            });
+            garbageCollector.scheduleWithFixedDelay(this::collectGarbage, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        }
+
+        public synchronized void stopGarbageCollector() {
+            if (garbageCollector != null) {
+                garbageCollector.shutdownNow();
+                garbageCollector = null;
+            }
+        }
+
+        Metrics getMetrics(int partition) {
+            return partitions[partition].getMetrics();
+        }
+
+        /**
+         * Registers the metrics of partition i with the platform MBean server as
+         * MVTO:type=Metrics,partition=i, for every i.
+         */
+        public void registerMetricsMBeans() throws JMException {
+            for (Partition partition: partitions) {
+                partition.registerMetricsMBean(Metrics.OBJECT_NAME + ",partition=" + partition.index);
+            }
+        }
+
+        // the partition a thread begins its transactions in when it does not name one
+        private Partition home() {
+            return partitions[(int) (Thread.currentThread().getId() % partitions.length)];
+        }
+
+        // the partition that handed out xact
+        private Partition home(long xact) {
+            return partitions[(int) ((xact - 1) % partitions.length)];
+        }
+
+        private Partition partitionFor(long xact, int key) throws Exception {
+            Partition home = home(xact);
+            Partition partition = partitions[partitionOf(key)];
+            if (partition != home) {
+                join(home, partition, xact);
+            }
+            return partition;
+        }
+
+        // makes xact, begun in home, a transaction of partition as well
+        private void join(Partition home, Partition partition, long xact) throws Exception {
+            TransactionGroup group = home.groupOf(xact, partitions.length);
+            if (group.getPart(partition.index) != null) {
+                return;
+            }
+            home.observe(partition.clock());
+            if (!partition.join(group, xact)) {
+                home.rollback(xact, AbortCause.STALE_TIMESTAMP);
+                throw new Exception("Transaction " + xact + " is too old for partition " + partition.index + ".");
+            }
+        }
+    }
+
+    enum AbortCause {
+        // a write came after a younger transaction read the version it would have replaced
+        RTS_VIOLATION,
+        DUPLICATE_KEY,
+        MISSING_KEY,
+        // read a version of a transaction that rolled back
+        CASCADE,
+        // an insert into a range a younger transaction scanned
+        PHANTOM,
+        // went to a partition whose watermark had passed its timestamp
+        STALE_TIMESTAMP,
+        // rolled back by its client
+        USER
+    }
+
+    /**
+     * Counters and histograms of a Partition. Recording only increments LongAdders, so it neither
+     * allocates nor locks; the gauges that visit the store or the active transactions are computed
+     * when read. Latencies are in nanoseconds and can be turned off, with System.nanoTime, by
+     * -Dmvto.metrics.latency=false. Exposed as a DynamicMBean, see MVTO.registerMetricsMBean.
+     */
+    static final class Metrics implements DynamicMBean {
+        static final String OBJECT_NAME = "MVTO:type=Metrics";
+        private static final boolean TIMED = !"false".equals(System.getProperty("mvto.metrics.latency"));
+        private static final MVTO.AbortCause[] CAUSES = MVTO.AbortCause.values();
+        private static final String[] HISTOGRAMS = {"CascadeDepth", "ChainLength", "BeginLatency", "InsertLatency",
+                "ReadLatency", "WriteLatency", "CommitLatency", "RollbackLatency", "IncrementLatency",
+                "CompareAndSetLatency"};
+        private static final String[] HISTOGRAM_ATTRIBUTES = {"Count", "Mean", "P50", "P99", "Max", "Buckets"};
+
+        final LongAdder commits = new LongAdder();
+        private final LongAdder[] aborts = new LongAdder[CAUSES.length];
+        final Histogram cascadeDepth = new Histogram();
+        final Histogram beginLatency = new Histogram();
+        final Histogram insertLatency = new Histogram();
+        final Histogram readLatency = new Histogram();
+        final Histogram writeLatency = new Histogram();
+        final Histogram commitLatency = new Histogram();
+        final Histogram rollbackLatency = new Histogram();
+        final Histogram incrementLatency = new Histogram();
+        final Histogram compareAndSetLatency = new Histogram();
+
+        private final Partition partition;
+        private final MBeanInfo info;
+
+        Metrics(Partition partition) {
+            this.partition = partition;
+            for (int i = 0; i < aborts.length; i++) {
+                aborts[i] = new LongAdder();
+            }
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            attributes.add(attribute("Commits", "long", "Committed transactions"));
+            attributes.add(attribute("Aborts", "long", "Rolled back transactions"));
+            for (MVTO.AbortCause cause: CAUSES) {
+                attributes.add(attribute("Aborts" + camelCase(cause), "long", "Transactions rolled back because of " + cause));
+            }
+            attributes.add(attribute("ActiveTransactions", "int", "Active transactions"));
+            attributes.add(attribute("WaitingTransactions", "int", "Active transactions waiting for the commit of others"));
+            attributes.add(attribute("ReclaimedVersions", "long", "Versions reclaimed by the garbage collector"));
+            for (String histogram: HISTOGRAMS) {
+                for (String suffix: HISTOGRAM_ATTRIBUTES) {
+                    String type = suffix.equals("Mean") ? "double" : suffix.equals("Buckets") ? "[J" : "long";
+                    attributes.add(attribute(histogram + suffix, type, suffix + " of " + histogram
+                            + (suffix.equals("Buckets") ? ", bucket i counts the values below 2^i" : "")));
+                }
+            }
+            info = new MBeanInfo(Metrics.class.getName(), "Metrics of the MVTO engine",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+
+        long start() {
+            return TIMED ? System.nanoTime() : 0;
+        }
+
+        void abort(MVTO.AbortCause cause) {
+            aborts[cause.ordinal()].increment();
+        }
+
+        public long getCommits() {
+            return commits.sum();
+        }
+
+        public long getAborts(MVTO.AbortCause cause) {
+            return aborts[cause.ordinal()].sum();
+        }
+
+        public long getAborts() {
+            long total = 0;
+            for (LongAdder adder: aborts) {
+                total += adder.sum();
+            }
+            return total;
+        }
+
+        @Override
+        public Object getAttribute(String name) throws AttributeNotFoundException {
+            return getAttribute(name, new Histogram[1]);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            AttributeList list = new AttributeList();
+            // the chain lengths visit every key, once per call
+            Histogram[] chainLengths = new Histogram[1];
+            for (String name: names) {
+                try {
+                    list.add(new Attribute(name, getAttribute(name, chainLengths)));
+                } catch (AttributeNotFoundException e) {
+                    // left out, as the contract of getAttributes asks
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Attribute " + attribute.getName() + " is read-only.");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            return info;
+        }
+
+        private Object getAttribute(String name, Histogram[] chainLengths) throws AttributeNotFoundException {
+            switch (name) {
+                case "Commits":
+                    return getCommits();
+                case "Aborts":
+                    return getAborts();
+                case "ActiveTransactions":
+                    return partition.activeTransactions();
+                case "WaitingTransactions":
+                    return partition.waitingTransactions();
+                case "ReclaimedVersions":
+                    return partition.getReclaimedVersionCount();
+                default:
+                    break;
+            }
+            for (MVTO.AbortCause cause: CAUSES) {
+                if (name.equals("Aborts" + camelCase(cause))) {
+                    return getAborts(cause);
+                }
+            }
+            for (String histogram: HISTOGRAMS) {
+                if (name.startsWith(histogram)) {
+                    Histogram h;
+                    if (histogram.equals("ChainLength")) {
+                        if (chainLengths[0] == null) {
+                            chainLengths[0] = partition.chainLengths();
+                        }
+                        h = chainLengths[0];
+                    } else {
+                        h = histogram(histogram);
+                    }
+                    switch (name.substring(histogram.length())) {
+                        case "Count":
+                            return h.getCount();
+                        case "Mean":
+                            return h.getMean();
+                        case "P50":
+                            return h.getPercentile(0.5);
+                        case "P99":
+                            return h.getPercentile(0.99);
+                        case "Max":
+                            return h.getMax();
+                        case "Buckets":
+                            return h.getBuckets();
+                        default:
+                            break;
+                    }
+                }
+            }
+            throw new AttributeNotFoundException("No attribute " + name);
+        }
+
+        private Histogram histogram(String name) {
+            switch (name) {
+                case "CascadeDepth": return cascadeDepth;
+                case "BeginLatency": return beginLatency;
+                case "InsertLatency": return insertLatency;
+                case "ReadLatency": return readLatency;
+                case "WriteLatency": return writeLatency;
+                case "CommitLatency": return commitLatency;
+                case "IncrementLatency": return incrementLatency;
+                case "CompareAndSetLatency": return compareAndSetLatency;
+                default: return rollbackLatency;
+            }
+        }
+
+        private static MBeanAttributeInfo attribute(String name, String type, String description) {
+            return new MBeanAttributeInfo(name, type, description, true, false, false);
+        }
+
+        // RTS_VIOLATION -> RtsViolation
+        private static String camelCase(MVTO.AbortCause cause) {
+            StringBuilder sb = new StringBuilder();
+            for (String word: cause.name().split("_")) {
+                sb.append(word.charAt(0)).append(word.substring(1).toLowerCase());
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Concurrent map from long keys to objects, for the timestamps of transactions as well as the
+     * keys of the store, so that looking up a key neither boxes it nor allocates an entry per
+     * mapping. The keys are spread over segments; each segment is an open-addressing table with
+     * linear probing, written under the segment's monitor and read without locking. A slot never
+     * changes its key once assigned: removal leaves a tombstone that only a re-insertion of the
+     * same key or the next rehash reclaims.
+     */
+    static class LongObjectMap<V> {
+        private static final Object TOMBSTONE = new Object();
+        private static final int MIN_CAPACITY = 16;
+
+        private final Segment<V>[] segments;
+        private final int segmentShift;
+
+        LongObjectMap() {
+            this(4 * Runtime.getRuntime().availableProcessors());
+        }
+
+        LongObjectMap(int concurrencyLevel) {
+            int count = concurrencyLevel <= 1 ? 1 : Integer.highestOneBit(concurrencyLevel - 1) << 1;
+            @SuppressWarnings("unchecked")
+            Segment<V>[] all = (Segment<V>[]) new Segment<?>[count];
+            segments = all;
+            for (int i = 0; i < count; i++) {
+                segments[i] = new Segment<>(MIN_CAPACITY);
+            }
+            segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+        }
+
+        @SuppressWarnings("unchecked")
+        V get(long key) {
+            int h = hash(key);
+            Table t = segmentFor(h).table;
+            for (int i = h & t.mask; ; i = (i + 1) & t.mask) {
+                Object v = t.values.get(i);
+                if (v == null) {
+                    return null;
+                }
+                if (v != TOMBSTONE && t.keys[i] == key) {
+                    return (V) v;
+                }
+            }
+        }
+
+        V put(long key, V value) {
+            int h = hash(key);
+            return segmentFor(h).put(h, key, value, false);
+        }
+
+        V putIfAbsent(long key, V value) {
+            int h = hash(key);
+            return segmentFor(h).put(h, key, value, true);
+        }
+
+        V remove(long key) {
+            int h = hash(key);
+            return segmentFor(h).remove(h, key, null);
+        }
+
+        boolean remove(long key, V value) {
+            int h = hash(key);
+            return segmentFor(h).remove(h, key, value) != null;
+        }
+
+        int size() {
+            int size = 0;
+            for (Segment<V> s: segments) {
+                size += s.size;
+            }
+            return size;
+        }
+
+        /**
+         * @return a weakly consistent view of the values, like the ones of ConcurrentHashMap.
+         */
+        Iterable<V> values() {
+            return ValueIterator::new;
+        }
+
+        private Segment<V> segmentFor(int hash) {
+            return segments[segmentShift == 32 ? 0 : hash >>> segmentShift];
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        private static final class Table {
+            final long[] keys;
+            final AtomicReferenceArray<Object> values;
+            final int mask;
+            final int threshold;
+
+            Table(int capacity) {
+                keys = new long[capacity];
+                values = new AtomicReferenceArray<>(capacity);
+                mask = capacity - 1;
+                threshold = capacity / 4 * 3;
+            }
+        }
+
+        private static final class Segment<V> {
+            volatile Table table;
+            volatile int size;
+            // live entries and tombstones
+            int used;
+
+            Segment(int capacity) {
+                table = new Table(capacity);
+            }
+
+            @SuppressWarnings("unchecked")
+            synchronized V put(int h, long key, V value, boolean onlyIfAbsent) {
+                Table t = table;
+                int i = h & t.mask;
+                for (Object v = t.values.get(i); v != null; v = t.values.get(i)) {
+                    if (t.keys[i] == key) {
+                        if (v == TOMBSTONE) {
+                            t.values.set(i, value);
+                            size++;
+                            return null;
+                        }
+                        if (!onlyIfAbsent) {
+                            t.values.set(i, value);
+                        }
+                        return (V) v;
+                    }
+                    i = (i + 1) & t.mask;
+                }
+                if (used + 1 > t.threshold) {
+                    rehash();
+                    return put(h, key, value, onlyIfAbsent);
+                }
+                t.keys[i] = key;
+                t.values.set(i, value);
+                used++;
+                size++;
+                return null;
+            }
+
+            @SuppressWarnings("unchecked")
+            synchronized V remove(int h, long key, V expected) {
+                Table t = table;
+                for (int i = h & t.mask; ; i = (i + 1) & t.mask) {
+                    Object v = t.values.get(i);
+                    if (v == null) {
+                        return null;
+                    }
+                    if (v != TOMBSTONE && t.keys[i] == key) {
+                        if (expected != null && v != expected) {
+                            return null;
+                        }
+                        t.values.set(i, TOMBSTONE);
+                        size--;
+                        return (V) v;
+                    }
+                }
+            }
+
+            // readers may still be probing the old table, which is never written again
+            private void rehash() {
+                Table old = table;
+                int capacity = MIN_CAPACITY;
+                while (capacity < (size + 1) * 2) {
+                    capacity <<= 1;
+                }
+                Table t = new Table(capacity);
+                for (int j = 0; j <= old.mask; j++) {
+                    Object v = old.values.get(j);
+                    if (v != null && v != TOMBSTONE) {
+                        int i = hash(old.keys[j]) & t.mask;
+                        while (t.values.get(i) != null) {
+                            i = (i + 1) & t.mask;
+                        }
+                        t.keys[i] = old.keys[j];
+                        t.values.lazySet(i, v);
+                    }
+                }
+                used = size;
+                table = t;
+            }
+        }
+
+        private final class ValueIterator implements Iterator<V> {
+            private int segment = -1;
+            private Table table;
+            private int slot;
+            private V next;
+
+            ValueIterator() {
+                advance();
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public V next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                V current = next;
+                advance();
+                return current;
+            }
+
+            @SuppressWarnings("unchecked")
+            private void advance() {
+                next = null;
+                while (true) {
+                    while (table != null && slot <= table.mask) {
+                        Object v = table.values.get(slot++);
+                        if (v != null && v != TOMBSTONE) {
+                            next = (V) v;
+                            return;
+                        }
+                    }
+                    if (++segment == segments.length) {
+                        return;
+                    }
+                    table = segments[segment].table;
+                    slot = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Version chain of one key: its versions ordered by write timestamp, each one a record of
+     * rts | wts | content | writer | kind, where writer is the timestamp of the transaction that
+     * wrote the version, or 0 once that transaction committed. A FULL version holds a value, a DELTA
+     * version an amount added to the value of the version before it. Versions are addressed by
+     * their index in the chain, which only stays valid while the caller holds the monitor of the
+     * Value.
+     */
+    abstract static class Value {
+        static final int FULL = 0;
+        static final int DELTA = 1;
+        // the value is a byte sequence, whose index in payloads is the content
+        static final int BYTES = 2;
+
+        final int key;
+        // the newest transaction that scanned the keys after the previous key up to this one
+        long gapRts;
+
+        // read-only buffers of the BYTES versions, on the heap whatever keeps the records; a slot
+        // is freed with its version, and versions with the same bytes may share a buffer
+        private ByteBuffer[] payloads;
+
+        Value(int key) {
+            this.key = key;
+        }
+
+        /**
+         * @return a chain holding a single version, kept in direct memory if offHeap is set.
+         */
+        static Value create(int key, long rts, long wts, int content, long writer, boolean offHeap) {
+            Value val = offHeap ? new OffHeapValue(key) : new HeapValue(key);
+            val.insertAt(0, rts, wts, content, writer);
+            return val;
+        }
+
+        abstract int size();
+
+        abstract long rts(int i);
+
+        abstract void setRts(int i, long rts);
+
+        abstract long wts(int i);
+
+        abstract int content(int i);
+
+        abstract void setContent(int i, int content);
+
+        abstract long writer(int i);
+
+        abstract void setWriter(int i, long writer);
+
+        abstract int kind(int i);
+
+        abstract void setKind(int i, int kind);
+
+        // shifts the versions from index at on by one to make room for the new, FULL, one
+        abstract void insertAt(int at, long rts, long wts, int content, long writer);
+
+        abstract void removeRecords(int from, int to);
+
+        void removeRange(int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (kind(i) == BYTES) {
+                    payloads[content(i)] = null;
+                }
+            }
+            removeRecords(from, to);
+        }
+
+        // makes version i a FULL one holding value
+        void setInt(int i, int value) {
+            if (kind(i) == BYTES) {
+                payloads[content(i)] = null;
+            }
+            setContent(i, value);
+            setKind(i, FULL);
+        }
+
+        // makes version i hold bytes, a read-only buffer no one else writes to
+        void setBytes(int i, ByteBuffer bytes) {
+            int slot = kind(i) == BYTES ? content(i) : freeSlot();
+            payloads[slot] = bytes;
+            setContent(i, slot);
+            setKind(i, BYTES);
+        }
+
+        private int freeSlot() {
+            if (payloads == null) {
+                payloads = new ByteBuffer[1];
+            }
+            for (int slot = 0; slot < payloads.length; slot++) {
+                if (payloads[slot] == null) {
+                    return slot;
+                }
+            }
+            int slot = payloads.length;
+            payloads = Arrays.copyOf(payloads, slot * 2);
+            return slot;
+        }
+
+        // the buffer of the BYTES version i
+        ByteBuffer payload(int i) {
+            return payloads[content(i)];
+        }
+
+        /**
+         * @return the index of the new version.
+         */
+        int createNewVersion(int content, long rts, long wts, long writer) {
+            int at = indexBefore(wts) + 1;
+            insertAt(at, rts, wts, content, writer);
+            return at;
+        }
+
+        boolean isCommitted(int i) {
+            return writer(i) == 0;
+        }
+
+        // index of the newest committed version written at or before timestamp, -1 if there is none
+        int committedBefore(long timestamp) {
+            int i = indexBefore(timestamp);
+            while (i >= 0 && !isCommitted(i)) {
+                i--;
+            }
+            return i;
+        }
+
+        // index of the FULL version the deltas up to version i apply to, 0 if they have none
+        int baseOf(int i) {
+            while (i > 0 && kind(i) == DELTA) {
+                i--;
+            }
+            return i;
+        }
+
+        /**
+         * @return the value at version i: its content plus, for a delta, the value before it.
+         *         With committedOnly, the versions not committed are left out. Only meaningful if
+         *         isInt(i, committedOnly).
+         */
+        int materialize(int i, boolean committedOnly) {
+            int value = 0;
+            for (int j = i; j >= 0; j--) {
+                if (committedOnly && !isCommitted(j)) {
+                    continue;
+                }
+                value += content(j);
+                if (kind(j) != DELTA) {
+                    break;
+                }
+            }
+            return value;
+        }
+
+        /**
+         * @return false if the value at version i, counted like materialize does, is bytes or
+         *         deltas added to bytes (an increment that went in before the bytes were written at
+         *         an older timestamp, or whose base rolled back).
+         */
+        boolean isInt(int i, boolean committedOnly) {
+            for (int j = i; j >= 0; j--) {
+                if ((!committedOnly || isCommitted(j)) && kind(j) != DELTA) {
+                    return kind(j) == FULL;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return a read-only view of the value at version i, counted like materialize does: the
+         *         buffer of a BYTES version, shared with the chain, or the four bytes of an int.
+         *         null if it is deltas added to bytes.
+         */
+        ByteBuffer bytes(int i, boolean committedOnly) {
+            if (kind(i) == BYTES) {
+                return payload(i).duplicate();
+            }
+            if (!isInt(i, committedOnly)) {
+                return null;
+            }
+            ByteBuffer bytes = ByteBuffer.allocate(4).putInt(0, materialize(i, committedOnly));
+            return bytes.asReadOnlyBuffer();
+        }
+
+        /**
+         * Removes the versions no transaction at or above watermark can read: everything older
+         * than the newest committed version visible at watermark, which becomes FULL if it was a
+         * delta.
+         * @return the number of versions removed.
+         */
+        int prune(long watermark) {
+            int keep = committedBefore(watermark);
+            if (keep < 0) {
+                return 0;
+            }
+            if (kind(keep) == DELTA && !isInt(keep, true)) {
+                // deltas added to bytes cannot be collapsed, keep the bytes they apply to
+                while (kind(keep) == DELTA || !isCommitted(keep)) {
+                    keep--;
+                }
+            } else if (kind(keep) == DELTA) {
+                setContent(keep, materialize(keep, true));
+                setKind(keep, FULL);
+            }
+            if (keep == 0) {
+                return 0;
+            }
+            removeRange(0, keep);
+            return keep;
+        }
+
+        boolean removeVersion(long wts) {
+            int i = indexOf(wts);
+            if (i < 0) {
+                return false;
+            }
+            removeRange(i, i + 1);
+            return true;
+        }
+
+        // index of the version written at wts, -1 if there is none
+        int indexOf(long wts) {
+            int i = indexBefore(wts);
+            return i >= 0 && wts(i) == wts ? i : -1;
+        }
+
+        /**
+         * @return the content of the version written at wts, for callers not holding the monitor.
+         */
+        synchronized int contentAt(long wts) {
+            return content(indexOf(wts));
+        }
+
+        synchronized int kindAt(long wts) {
+            return kind(indexOf(wts));
+        }
+
+        synchronized ByteBuffer payloadAt(long wts) {
+            return payload(indexOf(wts)).duplicate();
+        }
+
+        // index of the newest version written at or before timestamp, -1 if there is none
+        int indexBefore(long timestamp) {
+            int size = size();
+            if (size == 0 || wts(size - 1) <= timestamp) {
+                // the newest version is by far the most common answer
+                return size - 1;
+            }
+            int lo = 0;
+            int hi = size - 2;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (wts(mid) <= timestamp) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return hi;
+        }
+    }
+
+    /**
+     * Chain kept in one long array, four longs per version, so that a key costs two heap objects
+     * however many versions it has. The content and the kind of a version share a long.
+     */
+    static final class HeapValue extends Value {
+        private static final int RECORD = 4;
+        private static final int INITIAL_CAPACITY = 4;
+        private static final long LOW = 0xFFFFFFFFL;
+
+        private long[] records = new long[INITIAL_CAPACITY * RECORD];
+        private int size;
+
+        HeapValue(int key) {
+            super(key);
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        long rts(int i) {
+            return records[i * RECORD];
+        }
+
+        @Override
+        void setRts(int i, long rts) {
+            records[i * RECORD] = rts;
+        }
+
+        @Override
+        long wts(int i) {
+            return records[i * RECORD + 1];
+        }
+
+        @Override
+        long writer(int i) {
+            return records[i * RECORD + 2];
+        }
+
+        @Override
+        void setWriter(int i, long writer) {
+            records[i * RECORD + 2] = writer;
+        }
+
+        @Override
+        int content(int i) {
+            return (int) (records[i * RECORD + 3] >> 32);
+        }
+
+        @Override
+        void setContent(int i, int content) {
+            int r = i * RECORD + 3;
+            records[r] = (long) content << 32 | records[r] & LOW;
+        }
+
+        @Override
+        int kind(int i) {
+            return (int) records[i * RECORD + 3];
+        }
+
+        @Override
+        void setKind(int i, int kind) {
+            int r = i * RECORD + 3;
+            records[r] = records[r] & ~LOW | kind & LOW;
+        }
+
+        @Override
+        void insertAt(int at, long rts, long wts, int content, long writer) {
+            if ((size + 1) * RECORD > records.length) {
+                records = Arrays.copyOf(records, records.length * 2);
+            }
+            System.arraycopy(records, at * RECORD, records, (at + 1) * RECORD, (size - at) * RECORD);
+            int r = at * RECORD;
+            records[r] = rts;
+            records[r + 1] = wts;
+            records[r + 2] = writer;
+            records[r + 3] = (long) content << 32 | FULL;
+            size++;
+        }
+
+        @Override
+        void removeRecords(int from, int to) {
+            System.arraycopy(records, to * RECORD, records, from * RECORD, (size - to) * RECORD);
+            size -= to - from;
+        }
+    }
+
+    /**
+     * Chain kept in a block of direct memory allocated from VersionArena: the garbage collector
+     * neither traces nor copies the versions, only this object stays on the heap. The block is
+     * replaced by one twice as large when it fills up.
+     */
+    static final class OffHeapValue extends Value {
+        static final VersionArena ARENA = new VersionArena();
+
+        private ByteBuffer segment;
+        private int base;
+        private long block;
+        private int sizeClass = -1;
+        private int size;
+
+        OffHeapValue(int key) {
+            super(key);
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        long rts(int i) {
+            return segment.getLong(base + i * VersionArena.RECORD);
+        }
+
+        @Override
+        void setRts(int i, long rts) {
+            segment.putLong(base + i * VersionArena.RECORD, rts);
+        }
+
+        @Override
+        long wts(int i) {
+            return segment.getLong(base + i * VersionArena.RECORD + 8);
+        }
+
+        @Override
+        long writer(int i) {
+            return segment.getLong(base + i * VersionArena.RECORD + 16);
+        }
+
+        @Override
+        void setWriter(int i, long writer) {
+            segment.putLong(base + i * VersionArena.RECORD + 16, writer);
+        }
+
+        @Override
+        int content(int i) {
+            return segment.getInt(base + i * VersionArena.RECORD + 24);
+        }
+
+        @Override
+        void setContent(int i, int content) {
+            segment.putInt(base + i * VersionArena.RECORD + 24, content);
+        }
+
+        @Override
+        int kind(int i) {
+            return segment.getInt(base + i * VersionArena.RECORD + 28);
+        }
+
+        @Override
+        void setKind(int i, int kind) {
+            segment.putInt(base + i * VersionArena.RECORD + 28, kind);
+        }
+
+        @Override
+        void insertAt(int at, long rts, long wts, int content, long writer) {
+            if (sizeClass < 0 || size == 1 << sizeClass) {
+                ByteBuffer oldSegment = segment;
+                int oldBase = base;
+                long oldBlock = block;
+                int oldClass = sizeClass;
+                block = ARENA.allocate(sizeClass + 1);
+                segment = ARENA.segment(block);
+                base = VersionArena.offset(block);
+                sizeClass++;
+                for (int i = 0; i < size; i++) {
+                    copy(oldSegment, oldBase, i, i < at ? i : i + 1);
+                }
+                if (oldClass >= 0) {
+                    ARENA.free(oldBlock, oldClass);
+                }
+            } else {
+                for (int i = size - 1; i >= at; i--) {
+                    copy(segment, base, i, i + 1);
+                }
+            }
+            int r = base + at * VersionArena.RECORD;
+            segment.putLong(r, rts);
+            segment.putLong(r + 8, wts);
+            segment.putLong(r + 16, writer);
+            segment.putInt(r + 24, content);
+            segment.putInt(r + 28, FULL);
+            size++;
+        }
+
+        @Override
+        void removeRecords(int from, int to) {
+            for (int i = to; i < size; i++) {
+                copy(segment, base, i, i - (to - from));
+            }
+            size -= to - from;
+        }
+
+        // copies the record at index from of the block at fromBase to index to of this chain
+        private void copy(ByteBuffer fromSegment, int fromBase, int from, int to) {
+            int src = fromBase + from * VersionArena.RECORD;
+            int dst = base + to * VersionArena.RECORD;
+            for (int offset = 0; offset < VersionArena.RECORD; offset += 8) {
+                segment.putLong(dst + offset, fromSegment.getLong(src + offset));
+            }
+        }
+    }
+}
+
+
+/**
+ * An MVTO store with its own versions, active transactions and timestamp counter. Partition i
+ * of n hands out the timestamps i + 1 + k * n, so that the partitions of a PartitionedMVTO
+ * never give out the same one; a transaction spanning partitions has a part, with the same
+ * timestamp, in each of them, see TransactionGroup.
+ *
+ * All operations may be called concurrently from many threads. There is no global lock:
+ * the version chain of a key is guarded by the monitor of its {@link Value}, the log of a
+ * transaction by the monitor of its {@link Transaction}. Locks are always taken in the
+ * order transaction group -> transaction -> value -> reader index of a transaction, and no
+ * two transaction monitors are ever held at once.
+ */
+final class Partition {
+
+    final int index;
+
+    // the number of partitions, and the distance between the timestamps of this one
+    private final int stride;
+
+    private final MVTO.LongObjectMap<Transaction> activeTransactionsById = new MVTO.LongObjectMap<>();
+
+    private final MVTO.LongObjectMap<MVTO.Value> kvStore = new MVTO.LongObjectMap<>();
+
+    // every key of kvStore in key order, for scans; a key goes in under the monitor of the next one
+    private final ConcurrentSkipListMap<Integer, MVTO.Value> orderedIndex = new ConcurrentSkipListMap<>();
+
+    // stands for the key after the largest one: guards the gap above it, and its read timestamp
+    private final Object tailGap = new Object();
+    private long tailGapRts;
+
+    // returned by reads that find no version visible to the transaction
+    private static final long NOT_VISIBLE = Long.MIN_VALUE;
+
+    // returned by int reads of a version that holds bytes
+    private static final long NOT_AN_INT = Long.MIN_VALUE + 1;
+
+    // the end of the last block of timestamps handed out
+    private final AtomicLong max_xact;
+
+    // timestamps a thread takes from max_xact at a time, see nextTimestamp
+    private static final int TIMESTAMP_BLOCK = Integer.getInteger("mvto.timestampBlock", 64);
+
+    // the unused part of the block of each thread in this partition, as {next, end}
+    private final ThreadLocal<long[]> timestampBlock = ThreadLocal.withInitial(() -> new long[2]);
+
+    // no active transaction, nor any that begins later, reads below this timestamp
+    private final AtomicLong lowWatermark = new AtomicLong();
+
+    // a transaction that would read below the fence retries its begin, see computeLowWatermark
+    private final AtomicLong beginFence = new AtomicLong();
+
+    private final AtomicLong reclaimedVersions = new AtomicLong();
+
+    private ScheduledExecutorService garbageCollector;
+
+    // receives the writes of every committing transaction when durability is enabled
+    private volatile MVTO.CommitLog commitLog;
+
+    // work queue of commit and rollback cascades, empty between calls
+    // a cascade may go on in the partitions of a transaction group, so the queue is shared
+    private static final ThreadLocal<ArrayDeque<Transaction>> cascadeQueue = ThreadLocal.withInitial(ArrayDeque::new);
+
+    // chains of keys inserted from now on are kept in direct memory, see MVTO.setOffHeapStorage
+    static volatile boolean offHeapStorage = Boolean.getBoolean("mvto.offheap");
+
+    private final MVTO.Metrics metrics = new MVTO.Metrics(this);
+
+    Partition(int index, int partitions) {
+        this.index = index;
+        this.stride = partitions;
+        this.max_xact = new AtomicLong(index + 1 - partitions);
+    }
+
+    public long beginTransaction() {
+        long start = metrics.start();
+        long xact = nextTimestamp();
+        Transaction txn = new Transaction(this, xact);
+        activeTransactionsById.put(xact, txn);
+        while (txn.getOldestReadable() < beginFence.get()) {
+            // a concurrent watermark computation missed us, take a newer timestamp
+            activeTransactionsById.remove(xact, txn);
+            xact = freshTimestamp();
+            txn = new Transaction(this, xact);
+            activeTransactionsById.put(xact, txn);
+        }
+        MVTO.Trace.record(MVTO.Trace.BEGIN, xact, 0, 0);
+        metrics.beginLatency.recordSince(start);
+        return xact;
+    }
+
+    public long beginReadOnlyTransaction() {
+        long start = metrics.start();
+        for (boolean retry = false; ; retry = true) {
+            long xact = retry ? freshTimestamp() : nextTimestamp();
+            Transaction txn = new Transaction(this, xact, computeSnapshotTimestamp(snapshotCandidate()));
+            activeTransactionsById.put(xact, txn);
+            if (txn.getOldestReadable() >= beginFence.get()) {
+                MVTO.Trace.recordReadOnly(xact, txn.getOldestReadable());
+                metrics.beginLatency.recordSince(start);
+                return xact;
+            }
+            // a concurrent watermark computation missed us, take a newer snapshot
+            activeTransactionsById.remove(xact, txn);
+        }
+    }
+
+    public void insert(long xact, int key, int value) throws Exception {
+        long start = metrics.start();
+        try {
+            doInsert(xact, key, value);
+        } finally {
+            metrics.insertLatency.recordSince(start);
+        }
+    }
+
+    private void doInsert(long xact, int key, int value) throws Exception {
+        MVTO.Trace.record(MVTO.Trace.INSERT, xact, key, value);
+        Transaction activeTxn = getActive(xact);
+        checkWritable(activeTxn);
+        MVTO.AbortCause refused;
+        synchronized (activeTxn) {
+            checkRunning(activeTxn);
+            refused = insertVersion(activeTxn, key, value);
+        }
+        if (refused != null) {
+            rollback(xact, refused);
+            throw insertRefused(xact, key, refused);
+        }
+    }
+
+    public void insertMany(long xact, int[] keys, int[] values) throws Exception {
+        checkBatch(keys, values);
+        Transaction txn = getActive(xact);
+        checkWritable(txn);
+        MVTO.AbortCause refused = null;
+        int at = -1;
+        synchronized (txn) {
+            checkRunning(txn);
+            for (long entry: sortedByKey(keys)) {
+                at = (int) entry;
+                MVTO.Trace.record(MVTO.Trace.INSERT, xact, keys[at], values[at]);
+                refused = insertVersion(txn, keys[at], values[at]);
+                if (refused != null) {
+                    break;
+                }
+            }
+        }
+        if (refused != null) {
+            rollback(xact, refused);
+            throw insertRefused(xact, keys[at], refused);
+        }
+    }
+
+    // caller holds the monitor of txn; returns why the insert is refused, null if it is not
+    private MVTO.AbortCause insertVersion(Transaction txn, int key, int value) {
+        return insertVersion(txn, key, value, null);
+    }
+
+    // inserts bytes if they are not null, value otherwise
+    private MVTO.AbortCause insertVersion(Transaction txn, int key, int value, ByteBuffer bytes) {
+        long xact = txn.getTimestamp();
+        MVTO.Value val = kvStore.get(key);
+        if (val == null) {
+            MVTO.Value created = MVTO.Value.create(key, xact, xact, value, xact, offHeapStorage);
+            if (bytes != null) {
+                created.setBytes(0, bytes);
+            }
+            val = kvStore.putIfAbsent(key, created);
+            if (val == null) {
+                txn.addToLog(created, xact);
+                return indexNewKey(created, xact) ? null : MVTO.AbortCause.PHANTOM;
+            }
+        }
+        synchronized (val) {
+            // only a key whose insert rolled back, indexed already, is left without versions
+            if (val.size() > 0) {
+                return MVTO.AbortCause.DUPLICATE_KEY;
+            }
+            if (val.gapRts > xact) {
+                return MVTO.AbortCause.PHANTOM;
+            }
+            val.insertAt(0, xact, xact, value, xact);
+            if (bytes != null) {
+                val.setBytes(0, bytes);
+            }
+            txn.addToLog(val, xact);
+            return null;
+        }
+    }
+
+    /**
+     * Adds the new key val to the ordered index while holding the monitor of the key after it,
+     * which every scan covering the gap holds as well: either the scan sees val, or it has
+     * raised the gap read timestamp first.
+     * @return false if a younger transaction scanned the gap, to which val would be a phantom.
+     */
+    private boolean indexNewKey(MVTO.Value val, long xact) {
+        while (true) {
+            Map.Entry<Integer, MVTO.Value> next = orderedIndex.higherEntry(val.key);
+            Object gap = next == null ? tailGap : next.getValue();
+            synchronized (gap) {
+                Integer nextKey = orderedIndex.higherKey(val.key);
+                if (next == null ? nextKey != null : nextKey == null || nextKey.intValue() != next.getKey()) {
+                    // another key went in between meanwhile
+                    continue;
+                }
+                // val splits the gap, it is not visible to scans until put
+                val.gapRts = next == null ? tailGapRts : next.getValue().gapRts;
+                orderedIndex.put(val.key, val);
+                return val.gapRts <= xact;
+            }
+        }
+    }
+
+    private Exception insertRefused(long xact, int key, MVTO.AbortCause cause) {
+        if (cause == MVTO.AbortCause.PHANTOM) {
+            return new Exception("Transaction " + xact + " inserted key " + key + " into a range scanned by a younger transaction.");
+        }
+        return new Exception("Key: " + key + " already exists.");
+    }
+
+    public int read(long xact, int key) throws Exception {
+        long start = metrics.start();
+        try {
+            return doRead(xact, key);
+        } finally {
+            metrics.readLatency.recordSince(start);
+        }
+    }
+
+    private int doRead(long xact, int key) throws Exception {
+        MVTO.Value val = kvStore.get(key);
+        if (val == null) {
+            throw new Exception("There is no tuple with key " + key);
+        }
+        return readVersion(getActive(xact), val);
+    }
+
+    public int[] readMany(long xact, int[] keys) throws Exception {
+        Transaction txn = getActive(xact);
+        long[] order = sortedByKey(keys);
+        MVTO.Value[] vals = new MVTO.Value[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            int key = keys[(int) order[i]];
+            vals[i] = kvStore.get(key);
+            if (vals[i] == null) {
+                throw new Exception("There is no tuple with key " + key);
+            }
+        }
+        int[] values = new int[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            values[(int) order[i]] = readVersion(txn, vals[i]);
+        }
+        return values;
+    }
+
+    private int readVersion(Transaction txn, MVTO.Value val) throws Exception {
+        long content = txn.isReadOnly() ? readSnapshot(txn, val) : readVisible(txn, val);
+        if (content == NOT_VISIBLE) {
+            throw notVisible(txn, val);
+        }
+        if (content == NOT_AN_INT) {
+            throw notAnInt(val);
+        }
+        return (int) content;
+    }
+
+    private static Exception notVisible(Transaction txn, MVTO.Value val) {
+        return new Exception("There is no version of key " + val.key + " visible to transaction " + txn.getTimestamp());
+    }
+
+    private static Exception notAnInt(MVTO.Value val) {
+        return new Exception("The value of key " + val.key + " is not an int.");
+    }
+
+    /**
+     * Reads the version of val the read-write transaction txn sees, raising the read timestamps
+     * of that version and of the deltas and base it adds up, and making txn wait for their
+     * writers.
+     * @return its value, NOT_VISIBLE if there is none, or NOT_AN_INT if it holds bytes.
+     */
+    private long readVisible(Transaction txn, MVTO.Value val) throws Exception {
+        long xact = txn.getTimestamp();
+        long content;
+        boolean dirty;
+        synchronized (val) {
+            int i = val.indexBefore(xact);
+            if (i < 0) {
+                return NOT_VISIBLE;
+            }
+            dirty = !markRead(txn, val, i);
+            content = val.isInt(i, false) ? val.materialize(i, false) : NOT_AN_INT;
+        }
+        if (dirty) {
+            throw readRolledBack(xact, val);
+        }
+        if (content != NOT_AN_INT) {
+            MVTO.Trace.record(MVTO.Trace.READ, xact, val.key, (int) content);
+        }
+        return content;
+    }
+
+    // caller holds the monitor of val; returns false if a version that version i adds up is rolling back
+    private boolean markRead(Transaction txn, MVTO.Value val, int i) {
+        long xact = txn.getTimestamp();
+        for (int j = val.baseOf(i); j <= i; j++) {
+            if (val.rts(j) < xact) {
+                val.setRts(j, xact);
+            }
+            long writerTs = val.writer(j);
+            if (writerTs != 0 && writerTs != xact) {
+                // a writer stays active until its versions are settled, unless it is rolling
+                // back and its version is about to disappear
+                Transaction writer = activeTransactionsById.get(writerTs);
+                if (writer == null || !writer.addReader(txn)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private Exception readRolledBack(long xact, MVTO.Value val) {
+        rollback(xact, MVTO.AbortCause.CASCADE);
+        return new Exception("Transaction " + xact + " read key " + val.key + " from a rolled back transaction.");
+    }
+
+    // the read-only counterpart of readVisible
+    private long readSnapshot(Transaction txn, MVTO.Value val) {
+        int content;
+        synchronized (val) {
+            int i = val.committedBefore(txn.getOldestReadable());
+            if (i < 0) {
+                return NOT_VISIBLE;
+            }
+            if (!val.isInt(i, true)) {
+                return NOT_AN_INT;
+            }
+            content = val.materialize(i, true);
+        }
+        MVTO.Trace.record(MVTO.Trace.READ, txn.getTimestamp(), val.key, content);
+        return content;
+    }
+
+    public ByteBuffer readBytes(long xact, int key) throws Exception {
+        long start = metrics.start();
+        try {
+            MVTO.Value val = kvStore.get(key);
+            if (val == null) {
+                throw new Exception("There is no tuple with key " + key);
+            }
+            Transaction txn = getActive(xact);
+            ByteBuffer bytes;
+            boolean dirty = false;
+            synchronized (val) {
+                int i = txn.isReadOnly() ? val.committedBefore(txn.getOldestReadable()) : val.indexBefore(xact);
+                if (i < 0) {
+                    throw notVisible(txn, val);
+                }
+                if (!txn.isReadOnly()) {
+                    dirty = !markRead(txn, val, i);
+                }
+                bytes = val.bytes(i, txn.isReadOnly());
+            }
+            if (dirty) {
+                throw readRolledBack(xact, val);
+            }
+            if (bytes == null) {
+                throw new Exception("The value of key " + key + " adds increments to bytes.");
+            }
+            MVTO.Trace.record(MVTO.Trace.READ_BYTES, xact, key, bytes.remaining());
+            return bytes;
+        } finally {
+            metrics.readLatency.recordSince(start);
+        }
+    }
+
+    public SortedMap<Integer, Integer> scan(long xact, int fromKey, int toKey) throws Exception {
+        MVTO.Trace.record(MVTO.Trace.SCAN, xact, fromKey, toKey);
+        Transaction txn = getActive(xact);
+        SortedMap<Integer, Integer> result = new TreeMap<>();
+        if (fromKey > toKey) {
+            return result;
+        }
+        if (txn.isReadOnly()) {
+            // read-write transactions that can still insert are younger than the snapshot
+            for (MVTO.Value val: orderedIndex.subMap(fromKey, true, toKey, true).values()) {
+                long content = readSnapshot(txn, val);
+                if (content == NOT_AN_INT) {
+                    throw notAnInt(val);
+                }
+                if (content != NOT_VISIBLE) {
+                    result.put(val.key, (int) content);
+                }
+            }
+            return result;
+        }
+        // the smallest key not visited yet, a long so that it can go past Integer.MAX_VALUE
+        long from = fromKey;
+        while (from <= Integer.MAX_VALUE) {
+            Map.Entry<Integer, MVTO.Value> next = orderedIndex.ceilingEntry((int) from);
+            if (next == null) {
+                synchronized (tailGap) {
+                    if (orderedIndex.ceilingKey((int) from) != null) {
+                        continue;
+                    }
+                    tailGapRts = Math.max(tailGapRts, xact);
+                }
+                break;
+            }
+            MVTO.Value val = next.getValue();
+            synchronized (val) {
+                Integer first = orderedIndex.ceilingKey((int) from);
+                if (first == null || first.intValue() != val.key) {
+                    // a key went into the gap before val meanwhile
+                    continue;
+                }
+                val.gapRts = Math.max(val.gapRts, xact);
+            }
+            if (val.key > toKey) {
+                break;
+            }
+            long content = readVisible(txn, val);
+            if (content == NOT_AN_INT) {
+                throw notAnInt(val);
+            }
+            if (content != NOT_VISIBLE) {
+                result.put(val.key, (int) content);
+            }
+            from = (long) val.key + 1;
+        }
+        return result;
+    }
+
+    public void write(long xact, int key, int value) throws Exception {
+        long start = metrics.start();
+        try {
+            doWrite(xact, key, value);
+        } finally {
+            metrics.writeLatency.recordSince(start);
+        }
+    }
+
+    private void doWrite(long xact, int key, int value) throws Exception {
+        MVTO.Trace.record(MVTO.Trace.WRITE, xact, key, value);
+        MVTO.Value val = kvStore.get(key);
+        if (val == null) {
+            rollback(xact, MVTO.AbortCause.MISSING_KEY);
+            throw new Exception("There is no tuple with key " + key);
+        }
+        Transaction txn = getActive(xact);
+        checkWritable(txn);
+        boolean refused;
+        synchronized (txn) {
+            checkRunning(txn);
+            refused = !writeVersion(txn, val, value);
+        }
+        if (refused) {
+            rollback(xact, MVTO.AbortCause.RTS_VIOLATION);
+        }
+    }
+
+    public void writeMany(long xact, int[] keys, int[] values) throws Exception {
+        checkBatch(keys, values);
+        Transaction txn = getActive(xact);
+        checkWritable(txn);
+        long[] order = sortedByKey(keys);
+        MVTO.Value[] vals = new MVTO.Value[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            int key = keys[(int) order[i]];
+            vals[i] = kvStore.get(key);
+            if (vals[i] == null) {
+                rollback(xact, MVTO.AbortCause.MISSING_KEY);
+                throw new Exception("There is no tuple with key " + key);
+            }
+        }
+        int refused = -1;
+        synchronized (txn) {
+            checkRunning(txn);
+            for (int i = 0; i < order.length; i++) {
+                int at = (int) order[i];
+                MVTO.Trace.record(MVTO.Trace.WRITE, xact, keys[at], values[at]);
+                if (!writeVersion(txn, vals[i], values[at])) {
+                    refused = at;
+                    break;
+                }
+            }
+        }
+        if (refused >= 0) {
+            rollback(xact, MVTO.AbortCause.RTS_VIOLATION);
+            throw new Exception("Transaction " + xact + " was rolled back writing key " + keys[refused] + ".");
+        }
+    }
+
+    // caller holds the monitor of txn; returns false if MVTO refuses the write
+    private boolean writeVersion(Transaction txn, MVTO.Value val, int value) {
+        return writeVersion(txn, val, value, null);
+    }
+
+    // writes bytes if they are not null, value otherwise
+    private boolean writeVersion(Transaction txn, MVTO.Value val, int value, ByteBuffer bytes) {
+        long xact = txn.getTimestamp();
+        synchronized (val) {
+            int i = val.indexBefore(xact);
+            if (i < 0 || xact < val.rts(i)) {
+                return false;
+            }
+            if (bytes != null && val.kind(i) == MVTO.Value.BYTES && bytes.equals(val.payload(i))) {
+                // unchanged bytes, the new version shares the buffer of the one it replaces
+                bytes = val.payload(i);
+            }
+            if (xact == val.wts(i)) {
+                val.setInt(i, value);
+                if (bytes != null) {
+                    val.setBytes(i, bytes);
+                }
+            } else {
+                int at = val.createNewVersion(value, xact, xact, xact);
+                if (bytes != null) {
+                    val.setBytes(at, bytes);
+                }
+                txn.addToLog(val, xact);
+                reclaimedVersions.addAndGet(val.prune(lowWatermark.get()));
+            }
+            return true;
+        }
+    }
+
+    public void insertBytes(long xact, int key, ByteBuffer value) throws Exception {
+        long start = metrics.start();
+        try {
+            ByteBuffer bytes = copyOf(value);
+            MVTO.Trace.record(MVTO.Trace.INSERT_BYTES, xact, key, bytes.remaining());
+            Transaction txn = getActive(xact);
+            checkWritable(txn);
+            MVTO.AbortCause refused;
+            synchronized (txn) {
+                checkRunning(txn);
+                refused = insertVersion(txn, key, 0, bytes);
+            }
+            if (refused != null) {
+                rollback(xact, refused);
+                throw insertRefused(xact, key, refused);
+            }
+        } finally {
+            metrics.insertLatency.recordSince(start);
+        }
+    }
+
+    public void writeBytes(long xact, int key, ByteBuffer value) throws Exception {
+        long start = metrics.start();
+        try {
+            ByteBuffer bytes = copyOf(value);
+            MVTO.Trace.record(MVTO.Trace.WRITE_BYTES, xact, key, bytes.remaining());
+            MVTO.Value val = kvStore.get(key);
+            if (val == null) {
+                rollback(xact, MVTO.AbortCause.MISSING_KEY);
+                throw new Exception("There is no tuple with key " + key);
+            }
+            Transaction txn = getActive(xact);
+            checkWritable(txn);
+            boolean refused;
+            synchronized (txn) {
+                checkRunning(txn);
+                refused = !writeVersion(txn, val, 0, bytes);
+            }
+            if (refused) {
+                rollback(xact, MVTO.AbortCause.RTS_VIOLATION);
+                throw new Exception("Transaction " + xact + " was rolled back writing key " + key + ".");
+            }
+        } finally {
+            metrics.writeLatency.recordSince(start);
+        }
+    }
+
+    // a read-only copy of the remaining bytes of value, which the caller may go on changing
+    private static ByteBuffer copyOf(ByteBuffer value) {
+        ByteBuffer copy = ByteBuffer.allocate(value.remaining());
+        copy.put(value.duplicate()).flip();
+        return copy.asReadOnlyBuffer();
+    }
+
+    public void increment(long xact, int key, int delta) throws Exception {
+        long start = metrics.start();
+        try {
+            doIncrement(xact, key, delta);
+        } finally {
+            metrics.incrementLatency.recordSince(start);
+        }
+    }
+
+    private void doIncrement(long xact, int key, int delta) throws Exception {
+        MVTO.Trace.record(MVTO.Trace.INCREMENT, xact, key, delta);
+        MVTO.Value val = kvStore.get(key);
+        if (val == null) {
+            rollback(xact, MVTO.AbortCause.MISSING_KEY);
+            throw new Exception("There is no tuple with key " + key);
+        }
+        Transaction txn = getActive(xact);
+        checkWritable(txn);
+        boolean refused;
+        synchronized (txn) {
+            checkRunning(txn);
+            synchronized (val) {
+                int i = val.indexBefore(xact);
+                refused = i < 0 || xact < val.rts(i);
+                if (!refused && val.kind(val.baseOf(i)) == MVTO.Value.BYTES) {
+                    throw notAnInt(val);
+                }
+                if (!refused && xact == val.wts(i)) {
+                    // adds up with the version xact wrote already, whatever its kind
+                    val.setContent(i, val.content(i) + delta);
+                } else if (!refused) {
+                    int at = val.createNewVersion(delta, xact, xact, xact);
+                    val.setKind(at, MVTO.Value.DELTA);
+                    txn.addToLog(val, xact);
+                    reclaimedVersions.addAndGet(val.prune(lowWatermark.get()));
+                }
+            }
+        }
+        if (refused) {
+            rollback(xact, MVTO.AbortCause.RTS_VIOLATION);
+            throw new Exception("Transaction " + xact + " was rolled back incrementing key " + key + ".");
+        }
+    }
+
+    public boolean compareAndSet(long xact, int key, int expected, int newValue) throws Exception {
+        long start = metrics.start();
+        try {
+            MVTO.Value val = kvStore.get(key);
+            if (val == null) {
+                throw new Exception("There is no tuple with key " + key);
+            }
+            Transaction txn = getActive(xact);
+            checkWritable(txn);
+            if (readVersion(txn, val) != expected) {
+                return false;
+            }
+            MVTO.Trace.record(MVTO.Trace.WRITE, xact, key, newValue);
+            boolean refused;
+            synchronized (txn) {
+                checkRunning(txn);
+                refused = !writeVersion(txn, val, newValue);
+            }
+            if (refused) {
+                rollback(xact, MVTO.AbortCause.RTS_VIOLATION);
+                throw new Exception("Transaction " + xact + " was rolled back writing key " + key + ".");
+            }
+            return true;
+        } finally {
+            metrics.compareAndSetLatency.recordSince(start);
+        }
+    }
+
+    public void commit(long xact) throws Exception {
+        MVTO.Trace.record(MVTO.Trace.COMMIT, xact, 0, 0);
+        long start = metrics.start();
+        Transaction txn = getActive(xact);
+        requestCommit(txn);
+        metrics.commitLatency.recordSince(start);
+    }
+
+    public CompletableFuture<Void> commitAsync(long xact) {
+        MVTO.Trace.record(MVTO.Trace.COMMIT, xact, 0, 0);
+        Transaction txn = activeTransactionsById.get(xact);
+        if (txn == null) {
+            CompletableFuture<Void> notActive = new CompletableFuture<>();
+            notActive.completeExceptionally(new Exception("Transaction " + xact + " is not active."));
+            return notActive;
+        }
+        long start = metrics.start();
+        TransactionGroup group = txn.getGroup();
+        CompletableFuture<Void> completion = group == null ? txn.getCompletion() : group.getCompletion();
+        requestCommit(txn);
+        metrics.commitLatency.recordSince(start);
+        return completion;
+    }
+
+    /**
+     * Commits txn and, iteratively, every transaction that requested its commit and only
+     * waited for the ones committed before it. Whoever finishes a transaction first (this
+     * method or a rollback) decides its fate; a thread that loses the race leaves it alone.
+     * The parts of a transaction group commit together, once the last of them is ready, so the
+     * cascade goes on in every partition they are in.
+     */
+    private static void requestCommit(Transaction txn) {
+        TransactionGroup group = txn.getGroup();
+        if (group == null) {
+            txn.requestCommit();
+        } else {
+            group.requestCommit();
+        }
+        Queue<Transaction> ready = null;
+        while (txn != null) {
+            if (txn.isCommitRequested() && !txn.isWaiting()) {
+                if (finishAlone(txn, true)) {
+                    ready = txn.getPartition().publishCommit(txn, ready);
+                } else if ((group = txn.getGroup()) != null) {
+                    Transaction[] parts = group.finishCommit();
+                    for (int i = 0; parts != null && i < parts.length; i++) {
+                        if (parts[i] != null) {
+                            ready = parts[i].getPartition().publishCommit(parts[i], ready);
+                        }
+                    }
+                }
+            }
+            txn = ready == null ? null : ready.poll();
+        }
+    }
+
+    /**
+     * Makes the versions of the committed transaction txn visible as committed and queues the
+     * waiters it was the last to hold up on ready, which is created if null.
+     * A transaction leaves the active set only once its versions are settled, so that snapshots
+     * and the GC watermark never account for it half way.
+     * @return ready.
+     */
+    private Queue<Transaction> publishCommit(Transaction txn, Queue<Transaction> ready) {
+        metrics.commits.increment();
+        MVTO.CommitLog log = commitLog;
+        boolean logged = log != null && txn.getLogSize() > 0;
+        if (logged) {
+            // appended before anyone can read the versions as committed, so that the log
+            // never holds a transaction without the ones it read from
+            log.append(txn);
+        }
+        for (int i = 0; i < txn.getLogSize(); i++) {
+            MVTO.Value val = txn.getLoggedValue(i);
+            synchronized (val) {
+                int v = val.indexOf(txn.getLoggedWts(i));
+                if (v >= 0) {
+                    val.setWriter(v, 0);
+                }
+            }
+        }
+        activeTransactionsById.remove(txn.getTimestamp(), txn);
+        Transaction[] waiters = txn.getReaders();
+        for (int i = 0; i < txn.getReaderCount(); i++) {
+            Transaction waiter = waiters[i];
+            // a waiter that did not request its commit yet will commit itself later
+            if (waiter.waitLess() == 0 && waiter.isCommitRequested()) {
+                if (ready == null) {
+                    ready = cascadeQueue();
+                }
+                ready.add(waiter);
+            }
+        }
+        if (!logged) {
+            txn.complete();
+        }
+        return ready;
+    }
+
+    public void rollback(long xact) throws Exception {
+        long start = metrics.start();
+        rollback(xact, MVTO.AbortCause.USER);
+        metrics.rollbackLatency.recordSince(start);
+    }
+
+    /**
+     * Rolls back xact and every transaction that read one of the versions it wrote, recursively.
+     * A transaction is queued by the thread that finishes it, so each one is undone once; the
+     * parts of a transaction group are finished and queued together.
+     */
+    void rollback(long xact, MVTO.AbortCause cause) {
+        MVTO.Trace.record(MVTO.Trace.ROLLBACK, xact, 0, 0);
+        Transaction txn = activeTransactionsById.get(xact);
+        ArrayDeque<Transaction> rollbackQueue = cascadeQueue();
+        // the queue holds one level of the cascade after the other
+        int level = txn == null ? 0 : finishRollback(txn, rollbackQueue);
+        if (level == 0) {
+            // already rolled back, or finished: the trace has the ROLLBACK above
+            return;
+        }
+        metrics.abort(cause);
+        int depth = 0;
+        int nextLevel = 0;
+        txn = rollbackQueue.poll();
+        while (txn != null) {
+            for (int i = 0; i < txn.getLogSize(); i++) {
+                MVTO.Value val = txn.getLoggedValue(i);
+                synchronized (val) {
+                    val.removeVersion(txn.getLoggedWts(i));
+                }
+            }
+            txn.getPartition().activeTransactionsById.remove(txn.getTimestamp(), txn);
+            Transaction[] dependants = txn.getReaders();
+            for (int i = 0; i < txn.getReaderCount(); i++) {
+                Transaction dependant = dependants[i];
+                int finished = finishRollback(dependant, rollbackQueue);
+                if (finished > 0) {
+                    MVTO.Trace.record(MVTO.Trace.ROLLBACK, dependant.getTimestamp(), 0, 0);
+                    dependant.getPartition().metrics.abort(MVTO.AbortCause.CASCADE);
+                    nextLevel += finished;
+                }
+            }
+            txn.complete();
+            if (--level == 0 && nextLevel > 0) {
+                depth++;
+                level = nextLevel;
+                nextLevel = 0;
+            }
+            txn = rollbackQueue.poll();
+        }
+        metrics.cascadeDepth.record(depth);
+    }
+
+    /**
+     * Finishes txn as rolled back, with the other parts of its group if it has one, and queues
+     * what it finished.
+     * @return the number of transactions queued, 0 if txn was finished already.
+     */
+    private static int finishRollback(Transaction txn, Queue<Transaction> queue) {
+        if (finishAlone(txn, false)) {
+            queue.add(txn);
+            return 1;
+        }
+        TransactionGroup group = txn.getGroup();
+        Transaction[] parts = group == null ? null : group.finishRollback();
+        int finished = 0;
+        for (int i = 0; parts != null && i < parts.length; i++) {
+            if (parts[i] != null) {
+                queue.add(parts[i]);
+                finished++;
+            }
+        }
+        return finished;
+    }
 
-    private static HashMap<Integer, Value> kvStore = new HashMap<>();
+    // finishes txn unless it is a part of a group, which decides for all of its parts at once
+    private static boolean finishAlone(Transaction txn, boolean committed) {
+        // the group is only ever set under the monitor of a running txn, see groupOf
+        synchronized (txn) {
+            return txn.getGroup() == null && txn.finish(committed);
+        }
+    }
 
-    private static int max_xact = 0;
+    /**
+     * @return the group of the transaction xact, which it gets when it first goes beyond this
+     *         partition, as a group of at most partitions parts.
+     */
+    TransactionGroup groupOf(long xact, int partitions) throws Exception {
+        Transaction txn = getActive(xact);
+        synchronized (txn) {
+            checkRunning(txn);
+            if (txn.getGroup() == null) {
+                if (txn.isCommitRequested()) {
+                    throw new Exception("Transaction " + xact + " requested its commit already.");
+                }
+                txn.setGroup(new TransactionGroup(partitions, txn));
+            }
+            return txn.getGroup();
+        }
+    }
 
-    private static Logger logger = Logger.getLogger(MVTO.class.getCanonicalName());
+    /**
+     * Registers in this partition a read-write part of group, with the timestamp xact.
+     * @return false if the watermark of this partition has passed xact, or if the outcome of the
+     *         group is decided already; no part is registered then.
+     */
+    boolean join(TransactionGroup group, long xact) {
+        return join(group, new Transaction(this, xact));
+    }
 
-    // returns transaction id == logical start timestamp
-    public static int begin_transaction() {
-        max_xact++;
-        Transaction txn = new Transaction(max_xact);
-        activeTransactionsById.put(max_xact, txn);
-        logger.info("Begin transaction " + max_xact);
-        return max_xact;
+    /**
+     * Registers in this partition a read-only part of group, reading at snapshot.
+     * @return false if the watermark of this partition has passed snapshot, or if the outcome of
+     *         the group is decided already; no part is registered then.
+     */
+    boolean joinReadOnly(TransactionGroup group, long xact, long snapshot) {
+        return join(group, new Transaction(this, xact, snapshot));
     }
 
-    // create and initialize new object in transaction xact
-    public static void insert(int xact, int key, int value) throws Exception {
-        logger.info("Insert issued for " + xact + " => {" + key + "," + value + "}");
-        Value valObj = kvStore.get(key);
-        if (valObj == null) {
-            Transaction activeTxn = activeTransactionsById.get(xact);
-            Value newVal = new Value(key, value, activeTxn.getTimestamp());
-            kvStore.put(key, newVal);
-            activeTxn.addToLog(newVal.getBeforeWriteTimestamp(xact));
-        } else {
-            rollback(xact);
-            throw new Exception("Key: " + key + " already exists.");
+    private boolean join(TransactionGroup group, Transaction part) {
+        long xact = part.getTimestamp();
+        // not visible to other threads yet, so the group need not be set under the monitor
+        part.setGroup(group);
+        activeTransactionsById.put(xact, part);
+        if (part.getOldestReadable() < beginFence.get() || !group.add(part)) {
+            activeTransactionsById.remove(xact, part);
+            return false;
         }
+        // transactions begun here from now on are younger than xact
+        observe(xact);
+        return true;
     }
 
-    // return value of object key in transaction xact
-    public static int read(int xact, int key) throws Exception {
-        Value val = kvStore.get(key);
-        if (val == null) {
-            throw new Exception("There is no tuple with key " + key);
+    /**
+     * Hands out the next timestamp of the block of the calling thread, so that a begin only
+     * touches max_xact once every TIMESTAMP_BLOCK transactions. Timestamps of different threads
+     * are then out of begin order, which timestamp ordering allows; one that lags behind a
+     * watermark fails the beginFence check and is replaced by a freshTimestamp.
+     */
+    long nextTimestamp() {
+        long[] block = timestampBlock.get();
+        if (block[0] == block[1]) {
+            long end = max_xact.addAndGet((long) stride * TIMESTAMP_BLOCK);
+            block[0] = end - (long) stride * (TIMESTAMP_BLOCK - 1);
+            block[1] = end + stride;
         }
-        Transaction txn = activeTransactionsById.get(xact);
-        ValueVersion versioned = val.getBeforeWriteTimestamp(txn.getTimestamp());
-        if (versioned.getRts() < txn.getTimestamp()) {
-            versioned.setRts(txn.getTimestamp());
+        long xact = block[0];
+        block[0] += stride;
+        return xact;
+    }
+
+    // a timestamp newer than every one handed out so far; the block of the thread is dropped
+    long freshTimestamp() {
+        long[] block = timestampBlock.get();
+        block[0] = block[1];
+        return max_xact.addAndGet(stride);
+    }
+
+    /**
+     * Rolls back a group none of whose parts ran an operation yet, such as a read-only one that
+     * could not join every partition.
+     */
+    static void discard(TransactionGroup group) {
+        Transaction[] parts = group.finishRollback();
+        for (int i = 0; parts != null && i < parts.length; i++) {
+            if (parts[i] != null) {
+                parts[i].getPartition().activeTransactionsById.remove(parts[i].getTimestamp(), parts[i]);
+                parts[i].complete();
+            }
         }
-        versioned.addDependant(xact);
-        txn.waitOne();
-        logger.info("Read issued for " + xact + " => {" + key + "," + versioned.getContent()  + "}");
-        return versioned.getContent();
     }
 
-    // write value of existing object identified by key in transaction xact
-    public static void write(int xact, int key, int value) throws Exception {
-        logger.info("Write issued for " + xact + " => {" + key + "," + value + "}");
-        Value val = kvStore.get(key);
-        if (val == null) {
-            System.out.println("Cannot issue write for a non existent key: " + key);
-            rollback(xact);
+    public long collectGarbage() {
+        return collectGarbage(watermarkCandidate());
+    }
+
+    /**
+     * Prunes every version chain with the low watermark computed from candidate, see
+     * computeLowWatermark.
+     */
+    long collectGarbage(long candidate) {
+        long watermark = computeLowWatermark(candidate);
+        long reclaimed = 0;
+        for (MVTO.Value val: kvStore.values()) {
+            synchronized (val) {
+                reclaimed += val.prune(watermark);
+            }
         }
-        Transaction txn = activeTransactionsById.get(xact);
-        if (txn == null) {
-            throw new Exception("Transaction " + xact + " is not active!");
+        reclaimedVersions.addAndGet(reclaimed);
+        return reclaimed;
+    }
+
+    public synchronized void startGarbageCollector(long periodMillis) {
+        if (garbageCollector != null) {
+            return;
         }
-        ValueVersion versioned = val.getBeforeWriteTimestamp(txn.getTimestamp());
-        if (versioned == null || txn.getTimestamp() < versioned.getRts()) {
-            rollback(xact);
-        } else if (txn.getTimestamp() >= versioned.getRts() && txn.getTimestamp() == versioned.getWts()) {
-            versioned.setContent(value);
-            //txn.addToLog(versioned);
-        } else if (txn.getTimestamp() >= versioned.getRts() && versioned.getWts() < txn.getTimestamp()) {
-            ValueVersion vers = val.createNewVersion(value, txn.getTimestamp(), txn.getTimestamp());
-            txn.addToLog(vers);
+        garbageCollector = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "mvto-gc");
+            t.setDaemon(true);
+            return t;
+        });
+        garbageCollector.scheduleWithFixedDelay(this::collectGarbage, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopGarbageCollector() {
+        if (garbageCollector != null) {
+            garbageCollector.shutdownNow();
+            garbageCollector = null;
         }
     }
 
-    public static void commit(int xact) throws Exception {
-        logger.info("Commit issued for " + xact);
-        Transaction txn = activeTransactionsById.get(xact);
-        if (txn == null) {
-            throw new Exception("Transaction " + xact + " is not active.");
+    MVTO.Metrics getMetrics() {
+        return metrics;
+    }
+
+    void registerMetricsMBean(String objectName) throws JMException {
+        ObjectName name = new ObjectName(objectName);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (!server.isRegistered(name)) {
+            server.registerMBean(metrics, name);
         }
-        if (!txn.isWaiting()) {
-            List<ValueVersion> txnLog = txn.getLog();
-            for (ValueVersion writtenByThis: txnLog) {
-                for (Integer possibleWaiter: writtenByThis.getDependants()) {
-                    Transaction waiter = activeTransactionsById.get(possibleWaiter);
-                    if (waiter != null) {
-                        assert waiter.isWaiting();
-                        waiter.waitLess();
-                        if (!waiter.isWaiting()) {
-                            commit(waiter.getTimestamp());
-                        }
-                    }
-                }
+    }
+
+    /**
+     * @return the histogram of the number of versions per key, computed by visiting every key.
+     */
+    Histogram chainLengths() {
+        Histogram lengths = new Histogram();
+        for (MVTO.Value val: kvStore.values()) {
+            int size;
+            synchronized (val) {
+                size = val.size();
             }
-            activeTransactionsById.remove(xact);
+            lengths.record(size);
         }
+        return lengths;
     }
 
-    public static void rollback(int xact) throws Exception {
-        Queue<Integer> rollbackQueue = new LinkedBlockingDeque<>();
-        rollbackQueue.add(xact);
-        while (!rollbackQueue.isEmpty()) {
-            int txnId = rollbackQueue.remove();
-            logger.info("Rollback " + txnId);
-            Transaction txn = activeTransactionsById.remove(txnId);
-            if (txn == null) {
-                System.out.println("Transaction " + txnId + " was already rolled back!");
-                continue;
-            }
-            LinkedList<ValueVersion> txnLog = txn.getLog();
-            for (ValueVersion writtenByThis: txnLog) {
-                int key = writtenByThis.getKey();
-                kvStore.get(key).removeVersion(writtenByThis.getWts());
-                for (Integer dependantTxnId : writtenByThis.getDependants()) {
-                    rollbackQueue.add(dependantTxnId);
-                }
+    /**
+     * @return the number of active transactions that wait for the commit of others.
+     */
+    int waitingTransactions() {
+        int waiting = 0;
+        for (Transaction txn: activeTransactionsById.values()) {
+            if (txn.isWaiting()) {
+                waiting++;
             }
         }
+        return waiting;
     }
-}
 
+    int activeTransactions() {
+        return activeTransactionsById.size();
+    }
 
-class Value {
-    final int key;
-    LinkedList<ValueVersion> versions;
+    public long getReclaimedVersionCount() {
+        return reclaimedVersions.get();
+    }
 
-    Value(int key, int initialValue, int timestamp) {
-        this.key = key;
-        this.versions = new LinkedList<>();
-        ValueVersion initialVersion = new ValueVersion(key, timestamp, 0, initialValue);
-        this.versions.add(initialVersion);
+    public long getLowWatermark() {
+        return lowWatermark.get();
     }
 
-    ValueVersion createNewVersion(int content, int rts, int wts) {
-        ValueVersion versioned = new ValueVersion(key, rts, wts, content);
-        Iterator<ValueVersion> it = versions.descendingIterator();
-        ValueVersion addAfter = null;
-        int i = versions.size();
-        while (it.hasNext()) {
-            addAfter = it.next();
-            if ( addAfter.getWts() < versioned.getWts() ) {
-                break;
+    // the newest timestamp handed out, to a transaction or to the block of a thread
+    long clock() {
+        return max_xact.get();
+    }
+
+    /**
+     * Moves the clock past timestamp, which a transaction of another partition brought in, so
+     * that the clocks of partitions working together stay close: the blocks taken from now on,
+     * and the next timestamp of the calling thread, come after it. Blocks other threads hold
+     * already are left alone, their timestamps may still be older, see nextTimestamp.
+     */
+    void observe(long timestamp) {
+        max_xact.accumulateAndGet(timestamp, (last, seen) -> last >= seen ? last : last + (seen - last + stride - 1) / stride * stride);
+        long[] block = timestampBlock.get();
+        if (block[0] <= timestamp) {
+            block[0] = block[1];
+        }
+    }
+
+    long watermarkCandidate() {
+        return oldestReadable(max_xact.get(), false);
+    }
+
+    /**
+     * The oldest timestamp any active transaction may still read at, at most candidate. A
+     * transaction that registers itself while the active set is being scanned can be missed, so
+     * the candidate is published as beginFence first (such a transaction then retries its begin)
+     * and the set is scanned a second time to catch the ones that registered before seeing it.
+     * The candidate of a single partition is its watermarkCandidate; a PartitionedMVTO passes
+     * the smallest one of all, so that every partition accepts a transaction reading there.
+     */
+    private long computeLowWatermark(long candidate) {
+        beginFence.accumulateAndGet(candidate, Math::max);
+        long watermark = oldestReadable(candidate, false);
+        return lowWatermark.accumulateAndGet(watermark, Math::max);
+    }
+
+    long snapshotCandidate() {
+        return oldestReadable(max_xact.get(), true);
+    }
+
+    /**
+     * The newest timestamp, at most candidate, at or below which every read-write transaction
+     * has finished. Fenced like computeLowWatermark, so that no read-write transaction can begin
+     * below it.
+     */
+    long computeSnapshotTimestamp(long candidate) {
+        beginFence.accumulateAndGet(candidate, Math::max);
+        return oldestReadable(candidate, true);
+    }
+
+    private long oldestReadable(long bound, boolean readWriteOnly) {
+        long oldest = bound;
+        for (Transaction txn: activeTransactionsById.values()) {
+            if (!readWriteOnly || !txn.isReadOnly()) {
+                oldest = Math.min(oldest, txn.getOldestReadable());
             }
         }
-        if (i == versions.size()) {
-            versions.addLast(versioned);
-        } else if (i == 0) {
-            versions.addFirst(versioned);
-        } else {
-            versions.add(i, versioned);
+        return oldest;
+    }
+
+    boolean isActive(long xact) {
+        return activeTransactionsById.get(xact) != null;
+    }
+
+    long getSnapshotTimestamp(long xact) throws Exception {
+        Transaction txn = getActive(xact);
+        if (!txn.isReadOnly()) {
+            throw new Exception("Transaction " + xact + " is not read-only.");
         }
-        return versioned;
+        return txn.getOldestReadable();
     }
 
-    ValueVersion getBeforeWriteTimestamp(int timestamp) {
-        ValueVersion last = null;
-        for (ValueVersion vers: versions) {
-            if (vers.getWts() <= timestamp) {
-                last = vers;
-            } else {
-                break;
+    void scanSnapshot(long xact, VersionVisitor visitor) throws Exception {
+        long snapshot = getSnapshotTimestamp(xact);
+        for (MVTO.Value val: kvStore.values()) {
+            long wts;
+            int content = 0;
+            ByteBuffer bytes = null;
+            synchronized (val) {
+                int i = val.committedBefore(snapshot);
+                if (i < 0) {
+                    continue;
+                }
+                wts = val.wts(i);
+                if (val.isInt(i, true)) {
+                    content = val.materialize(i, true);
+                } else {
+                    bytes = val.bytes(i, true);
+                    if (bytes == null) {
+                        throw new Exception("The value of key " + val.key + " adds increments to bytes.");
+                    }
+                }
             }
+            visitor.visit(val.key, wts, content, bytes);
         }
-        return last;
     }
 
-    public ValueVersion removeVersion(int wts) {
-        Iterator<ValueVersion> it = versions.descendingIterator();
-        while (it.hasNext()) {
-            ValueVersion current = it.next();
-            if (wts > current.getWts()) {
-                return null;
-            } else if (wts == current.getWts()) {
-                it.remove();
-                return current;
+    void setCommitLog(MVTO.CommitLog log) {
+        commitLog = log;
+    }
+
+    void restore(int key, int value, long wts, long xact) {
+        restore(key, value, wts, MVTO.Value.FULL, xact);
+    }
+
+    void restore(int key, int value, long wts, int kind, long xact) {
+        restore(key, value, null, wts, kind, xact);
+    }
+
+    void restore(int key, ByteBuffer bytes, long wts, long xact) {
+        restore(key, 0, bytes, wts, MVTO.Value.BYTES, xact);
+    }
+
+    private void restore(int key, int value, ByteBuffer bytes, long wts, int kind, long xact) {
+        MVTO.Value val = kvStore.get(key);
+        if (val == null) {
+            val = MVTO.Value.create(key, wts, wts, value, 0, offHeapStorage);
+            setRestoredKind(val, 0, kind, bytes);
+            kvStore.put(key, val);
+            orderedIndex.put(key, val);
+        } else {
+            synchronized (val) {
+                if (val.indexOf(wts) < 0) {
+                    setRestoredKind(val, val.createNewVersion(value, wts, wts, 0), kind, bytes);
+                }
             }
         }
-        return null;
+        observe(xact);
     }
 
-}
+    private static void setRestoredKind(MVTO.Value val, int i, int kind, ByteBuffer bytes) {
+        if (kind == MVTO.Value.BYTES) {
+            val.setBytes(i, bytes.asReadOnlyBuffer());
+        } else {
+            val.setKind(i, kind);
+        }
+    }
+
+    private static ArrayDeque<Transaction> cascadeQueue() {
+        ArrayDeque<Transaction> queue = cascadeQueue.get();
+        // a future completed during a cascade may run a nested commit or rollback on this thread
+        return queue.isEmpty() ? queue : new ArrayDeque<>();
+    }
 
-class ValueVersion {
-    private final int key;
-    private int rts;
-    private int wts;
-    private int content;
-    private LinkedList<Integer> dependants = new LinkedList<>();
+    // key << 32 | index for every key, in key order and, for equal keys, in index order
+    private static long[] sortedByKey(int[] keys) {
+        long[] order = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            order[i] = (long) keys[i] << 32 | i;
+        }
+        Arrays.sort(order);
+        return order;
+    }
 
-    ValueVersion(int key, int rts, int wts, int content) {
-        this.key = key;
-        this.rts = rts;
-        this.wts = wts;
-        this.content = content;
+    private static void checkBatch(int[] keys, int[] values) throws Exception {
+        if (keys.length != values.length) {
+            throw new Exception("Got " + keys.length + " keys but " + values.length + " values.");
+        }
     }
 
-    public int getRts() {
-        return this.rts;
+    private Transaction getActive(long xact) throws Exception {
+        Transaction txn = activeTransactionsById.get(xact);
+        if (txn == null) {
+            throw new Exception("Transaction " + xact + " is not active.");
+        }
+        return txn;
     }
 
-    public void setRts(int rts) {
-        this.rts = rts;
+    private void checkWritable(Transaction txn) throws Exception {
+        if (txn.isReadOnly()) {
+            throw new Exception("Transaction " + txn.getTimestamp() + " is read-only.");
+        }
     }
 
-    public int getWts() {
-        return this.wts;
+    // caller holds the monitor of txn
+    private void checkRunning(Transaction txn) throws Exception {
+        if (txn.isFinished()) {
+            throw new Exception("Transaction " + txn.getTimestamp() + " is not active.");
+        }
     }
+}
+
 
-    public int getKey() {
-        return this.key;
+/**
+ * Allocator of version records in direct memory. Memory is reserved in segments of 64 MB and
+ * handed out in blocks of 2^k records; freed blocks are kept per size class for reuse. Keys are
+ * never deleted, so segments are never given back. A block is addressed as
+ * segment index << 32 | byte offset in the segment.
+ */
+final class VersionArena {
+    // rts | wts | writer (longs) | content | kind (ints)
+    static final int RECORD = 32;
+    private static final int SEGMENT_BYTES = 1 << 26;
+    private static final int MAX_CLASS = 31 - Integer.numberOfLeadingZeros(SEGMENT_BYTES / RECORD);
+
+    // replaced by a larger copy when a segment is added, read without locking
+    private volatile ByteBuffer[] segments = new ByteBuffer[0];
+    private int used = SEGMENT_BYTES;
+    private final long[][] free = new long[MAX_CLASS + 1][];
+    private final int[] freeCount = new int[MAX_CLASS + 1];
+
+    synchronized long allocate(int sizeClass) {
+        if (sizeClass > MAX_CLASS) {
+            throw new OutOfMemoryError("A version chain cannot hold more than " + (1 << MAX_CLASS) + " versions.");
+        }
+        if (freeCount[sizeClass] > 0) {
+            return free[sizeClass][--freeCount[sizeClass]];
+        }
+        int bytes = RECORD << sizeClass;
+        if (used + bytes > SEGMENT_BYTES) {
+            // the tail of the full segment is kept as free blocks
+            for (int k = MAX_CLASS; k >= 0; k--) {
+                if (used + (RECORD << k) <= SEGMENT_BYTES) {
+                    free(((long) (segments.length - 1) << 32) | used, k);
+                    used += RECORD << k;
+                }
+            }
+            ByteBuffer[] grown = Arrays.copyOf(segments, segments.length + 1);
+            grown[segments.length] = ByteBuffer.allocateDirect(SEGMENT_BYTES).order(ByteOrder.nativeOrder());
+            segments = grown;
+            used = 0;
+        }
+        long block = ((long) (segments.length - 1) << 32) | used;
+        used += bytes;
+        return block;
     }
 
-    void setContent(int content) {
-        this.content = content;
+    synchronized void free(long block, int sizeClass) {
+        long[] blocks = free[sizeClass];
+        if (blocks == null || freeCount[sizeClass] == blocks.length) {
+            free[sizeClass] = blocks = blocks == null ? new long[16] : Arrays.copyOf(blocks, blocks.length * 2);
+        }
+        blocks[freeCount[sizeClass]++] = block;
     }
 
-    int getContent() {
-        return this.content;
+    ByteBuffer segment(long block) {
+        return segments[(int) (block >>> 32)];
     }
 
-    public void addDependant(int txnId) {
-        dependants.add(txnId);
+    static int offset(long block) {
+        return (int) block;
     }
 
-    public List<Integer> getDependants() {
-        return this.dependants;
+    /**
+     * @return the direct memory reserved so far, in bytes.
+     */
+    long getReservedBytes() {
+        return (long) segments.length * SEGMENT_BYTES;
     }
 }
 
-class Transaction {
-    final private int timestamp;
-    private LinkedList<ValueVersion> writtenByThis = new LinkedList<>();
-    private int waitingFor;
+class Transaction implements MVTO.Commit {
+    private static final Transaction[] NO_READERS = new Transaction[0];
+
+    final private Partition partition;
+    final private long timestamp;
+    final private boolean readOnly;
+    // read-write transactions read at their timestamp, read-only ones at their snapshot
+    final private long oldestReadable;
+    // the chains written by this transaction and the write timestamps of its versions in them
+    private MVTO.Value[] writtenValues = new MVTO.Value[4];
+    private long[] writtenWts = new long[4];
+    private int logSize;
+    // reverse dependency index: transactions that read versions of this one before it finished
+    private Transaction[] readers = NO_READERS;
+    private int readerCount;
+    // guards readers and the outcome; taken last, below the monitors of values
+    private final Object readersLock = new Object();
+    private final AtomicInteger waitingFor = new AtomicInteger();
+    private volatile boolean commitRequested;
+    private boolean finished;
+    private boolean committed;
+    private boolean completed;
+    private Throwable failure;
+    private CompletableFuture<Void> completion;
+    // the transaction spanning partitions this one is a part of, if any
+    private volatile TransactionGroup group;
+
+    public Transaction(Partition partition, long timestamp) {
+        this.partition = partition;
+        this.timestamp = timestamp;
+        this.readOnly = false;
+        // newer versions are never pruned while an older one survives
+        this.oldestReadable = timestamp - 1;
+    }
 
-    public Transaction(int timestamp) {
+    public Transaction(Partition partition, long timestamp, long snapshot) {
+        this.partition = partition;
         this.timestamp = timestamp;
-        this.waitingFor = 0;
+        this.readOnly = true;
+        this.oldestReadable = snapshot;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @return the timestamp below which this transaction does not need any but the newest
+     *         committed version; the garbage collector keeps that one.
+     */
+    public long getOldestReadable() {
+        return oldestReadable;
     }
 
-    public int getTimestamp() {
+    public long getTimestamp() {
         return this.timestamp;
     }
 
-    public void addToLog(ValueVersion key) {
-        writtenByThis.add(key);
+    public Partition getPartition() {
+        return partition;
+    }
+
+    public TransactionGroup getGroup() {
+        return group;
+    }
+
+    // caller holds the monitor of this transaction, unless no other thread can see it yet
+    public void setGroup(TransactionGroup group) {
+        this.group = group;
+    }
+
+    public synchronized void addToLog(MVTO.Value val, long wts) {
+        if (logSize == writtenWts.length) {
+            writtenValues = Arrays.copyOf(writtenValues, logSize * 2);
+            writtenWts = Arrays.copyOf(writtenWts, logSize * 2);
+        }
+        writtenValues[logSize] = val;
+        writtenWts[logSize] = wts;
+        logSize++;
+    }
+
+    // the log and the readers are stable once finish has been called
+    public int getLogSize() {
+        return logSize;
+    }
+
+    public MVTO.Value getLoggedValue(int i) {
+        return writtenValues[i];
+    }
+
+    public long getLoggedWts(int i) {
+        return writtenWts[i];
+    }
+
+    public int getLoggedKey(int i) {
+        return writtenValues[i].key;
+    }
+
+    public int getLoggedKind(int i) {
+        return writtenValues[i].kindAt(writtenWts[i]);
+    }
+
+    public int getLoggedContent(int i) {
+        return writtenValues[i].contentAt(writtenWts[i]);
+    }
+
+    public ByteBuffer getLoggedBytes(int i) {
+        return writtenValues[i].payloadAt(writtenWts[i]);
+    }
+
+    public Transaction[] getReaders() {
+        return readers;
     }
 
-    public LinkedList<ValueVersion> getLog() {
-        return this.writtenByThis;
+    public int getReaderCount() {
+        return readerCount;
+    }
+
+    /**
+     * Makes reader wait for the commit of this transaction, unless it is committed already.
+     * @return false if this transaction was rolled back, the reader has to roll back as well.
+     */
+    public boolean addReader(Transaction reader) {
+        synchronized (readersLock) {
+            if (finished) {
+                return committed;
+            }
+            if (readerCount > 0 && readers[readerCount - 1] == reader) {
+                return true;
+            }
+            if (readerCount == readers.length) {
+                readers = Arrays.copyOf(readers, Math.max(4, readerCount * 2));
+            }
+            readers[readerCount++] = reader;
+            reader.waitOne();
+            return true;
+        }
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Marks the transaction as committed or rolled back; no version can be logged and no
+     * reader can be added afterwards.
+     * @return false if the transaction was finished already.
+     */
+    public synchronized boolean finish(boolean committed) {
+        synchronized (readersLock) {
+            if (finished) {
+                return false;
+            }
+            this.finished = true;
+            this.committed = committed;
+            return true;
+        }
+    }
+
+    /**
+     * @return a future for the outcome of this transaction, completed by complete().
+     */
+    public synchronized CompletableFuture<Void> getCompletion() {
+        if (completion == null) {
+            completion = new CompletableFuture<>();
+            if (completed) {
+                settle(completion);
+            }
+        }
+        return completion;
+    }
+
+    // called once the effects of finish are visible to other transactions, and durable if logged
+    public void complete() {
+        complete(null);
+    }
+
+    /**
+     * Completes the outcome of a committed transaction exceptionally, e.g. when its log
+     * record could not be made durable.
+     */
+    public void complete(Throwable failure) {
+        CompletableFuture<Void> future;
+        synchronized (this) {
+            this.completed = true;
+            this.failure = failure;
+            future = completion;
+        }
+        if (future != null) {
+            settle(future);
+        }
+    }
+
+    private void settle(CompletableFuture<Void> future) {
+        if (failure != null) {
+            future.completeExceptionally(failure);
+        } else if (committed) {
+            future.complete(null);
+        } else {
+            future.completeExceptionally(new Exception("Transaction " + timestamp + " was rolled back."));
+        }
+    }
+
+    public boolean isCommitRequested() {
+        return commitRequested;
+    }
+
+    public void requestCommit() {
+        commitRequested = true;
     }
 
     public boolean isWaiting() {
-        return waitingFor != 0;
+        return waitingFor.get() != 0;
     }
 
     public void waitOne() {
-        waitingFor++;
+        waitingFor.incrementAndGet();
+    }
+
+    public int waitLess() {
+        return waitingFor.decrementAndGet();
     }
 
-    public void waitLess() {
-        waitingFor--;
+}
+
+/**
+ * A transaction spanning partitions: one Transaction per partition it went to, all with the
+ * timestamp it began with in the first one. The parts commit together once every one of them
+ * requested its commit and waits for no other transaction, and roll back together as soon as
+ * one of them has to; the outcome is decided once, under the monitor of the group. As every
+ * partition orders the versions of its keys by the same timestamps, the union of the
+ * partitions is serializable in timestamp order. Parts only wait for the commit of older
+ * transactions, so no two groups can wait for each other.
+ */
+final class TransactionGroup {
+    // by partition index
+    private final Transaction[] parts;
+    private boolean commitRequested;
+    private boolean finished;
+
+    TransactionGroup(int partitions) {
+        this.parts = new Transaction[partitions];
+    }
+
+    // first caller holds the monitor of first, which is running
+    TransactionGroup(int partitions, Transaction first) {
+        this(partitions);
+        parts[first.getPartition().index] = first;
+    }
+
+    /**
+     * @return false if the commit of the group was requested or its outcome decided already,
+     *         part is not added then.
+     */
+    synchronized boolean add(Transaction part) {
+        if (commitRequested || finished) {
+            return false;
+        }
+        parts[part.getPartition().index] = part;
+        return true;
+    }
+
+    synchronized Transaction getPart(int partition) {
+        return parts[partition];
+    }
+
+    void requestCommit() {
+        synchronized (this) {
+            commitRequested = true;
+        }
+        // no part is added anymore
+        for (Transaction part: parts) {
+            if (part != null) {
+                part.requestCommit();
+            }
+        }
+    }
+
+    /**
+     * Finishes every part as committed, if each one is ready to.
+     * @return the parts, by partition, or null if one of them is not ready or the outcome of
+     *         the group is decided already.
+     */
+    synchronized Transaction[] finishCommit() {
+        if (finished) {
+            return null;
+        }
+        for (Transaction part: parts) {
+            if (part != null && (!part.isCommitRequested() || part.isWaiting())) {
+                return null;
+            }
+        }
+        return finish(true);
+    }
+
+    /**
+     * Finishes every part as rolled back.
+     * @return the parts, by partition, or null if the outcome of the group is decided already.
+     */
+    synchronized Transaction[] finishRollback() {
+        return finished ? null : finish(false);
+    }
+
+    private Transaction[] finish(boolean committed) {
+        finished = true;
+        for (Transaction part: parts) {
+            if (part != null) {
+                part.finish(committed);
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * @return a future completed once every part has committed, or completed exceptionally
+     *         once they have been rolled back.
+     */
+    synchronized CompletableFuture<Void> getCompletion() {
+        List<CompletableFuture<Void>> completions = new ArrayList<>();
+        for (Transaction part: parts) {
+            if (part != null) {
+                completions.add(part.getCompletion());
+            }
+        }
+        return CompletableFuture.allOf(completions.toArray(new CompletableFuture<?>[0]));
     }
+}
 
+interface VersionVisitor {
+    // bytes is the value if the version holds bytes, null if it holds the int value
+    void visit(int key, long wts, int value, ByteBuffer bytes) throws IOException;
 }
 
+/**
+ * Histogram of non-negative values in power-of-two buckets: bucket 0 counts zeros, bucket i
+ * the values in [2^(i-1), 2^i). Percentiles are the upper bound of the bucket they fall in,
+ * so they are accurate within a factor of two. Recording neither allocates nor locks.
+ */
+final class Histogram {
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+
+    Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets[BUCKETS - Long.numberOfLeadingZeros(value)].increment();
+        sum.add(value);
+    }
+
+    // records the time elapsed since start, a value of Metrics.start()
+    void recordSince(long start) {
+        if (start != 0) {
+            record(System.nanoTime() - start);
+        }
+    }
+
+    long[] getBuckets() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    long getCount() {
+        long count = 0;
+        for (LongAdder bucket: buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    long getPercentile(double p) {
+        long[] counts = getBuckets();
+        long total = 0;
+        for (long c: counts) {
+            total += c;
+        }
+        long rank = (long) Math.ceil(p * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return upperBound(i);
+            }
+        }
+        return 0;
+    }
+
+    long getMax() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (buckets[i].sum() > 0) {
+                return upperBound(i);
+            }
+        }
+        return 0;
+    }
+
+    private static long upperBound(int bucket) {
+        return bucket == 0 ? 0 : (1L << bucket) - 1;
+    }
+}
@@ -0,0 +1,294 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Schedules on disk, and a replay that runs one against MVTO as fast as a single thread can.
+ * A schedule is the operations of transactions in the order to run them, with the value each
+ * read is expected to return; the replay streams it from a memory-mapped file, checks the
+ * reads and reports the throughput. Schedules are written with a Writer, or converted from a
+ * Trace dump so that a captured workload becomes a repeatable benchmark:
+ *   java Replay convert <trace file> <schedule file>
+ *   java Replay run <schedule file>
+ *
+ * File layout, all big-endian: magic | count (long) | count * (type (byte) | txn | key | value),
+ * with the types of Trace. Transactions are numbered from 1 in the order they begin; a
+ * BEGIN_READ_ONLY has neither key nor value, a SCAN has the range as key and value and an
+ * INCREMENT the delta as value.
+ **/
+class Replay {
+    private static final int MAGIC = 0x4D565331;
+    private static final int HEADER = 12;
+    private static final int EVENT = 13;
+    // events are mapped a chunk at a time
+    private static final int CHUNK = EVENT << 22;
+    // mismatches reported, of all that are counted
+    private static final int PRINTED = 20;
+
+    /**
+     * Writes a schedule event by event. Transactions get their numbers from begin.
+     */
+    static final class Writer implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(EVENT << 12);
+        private long count;
+        private int transactions;
+
+        Writer(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+            buffer.position(HEADER);
+        }
+
+        int begin() throws IOException {
+            add(MVTO.Trace.BEGIN, ++transactions, 0, 0);
+            return transactions;
+        }
+
+        int beginReadOnly() throws IOException {
+            add(MVTO.Trace.BEGIN_READ_ONLY, ++transactions, 0, 0);
+            return transactions;
+        }
+
+        void insert(int txn, int key, int value) throws IOException {
+            add(MVTO.Trace.INSERT, txn, key, value);
+        }
+
+        void read(int txn, int key, int expected) throws IOException {
+            add(MVTO.Trace.READ, txn, key, expected);
+        }
+
+        void write(int txn, int key, int value) throws IOException {
+            add(MVTO.Trace.WRITE, txn, key, value);
+        }
+
+        void increment(int txn, int key, int delta) throws IOException {
+            add(MVTO.Trace.INCREMENT, txn, key, delta);
+        }
+
+        void scan(int txn, int fromKey, int toKey) throws IOException {
+            add(MVTO.Trace.SCAN, txn, fromKey, toKey);
+        }
+
+        void commit(int txn) throws IOException {
+            add(MVTO.Trace.COMMIT, txn, 0, 0);
+        }
+
+        void rollback(int txn) throws IOException {
+            add(MVTO.Trace.ROLLBACK, txn, 0, 0);
+        }
+
+        private void add(int type, int txn, int key, int value) throws IOException {
+            if (txn < 1 || txn > transactions) {
+                throw new IOException("Transaction " + txn + " did not begin.");
+            }
+            if (buffer.remaining() < EVENT) {
+                flush();
+            }
+            buffer.put((byte) type).putInt(txn).putInt(key).putInt(value);
+            count++;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putLong(count).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, HEADER - header.remaining());
+            }
+            channel.close();
+        }
+    }
+
+    /**
+     * Converts a Trace dump into a schedule: the transactions of the trace in the order their
+     * events were recorded, renumbered. Events of transactions whose begin the trace lost are
+     * dropped, and so are the ones without the data to replay them (the values of bytes) and
+     * the rollbacks of transactions already over.
+     * @return the number of transactions.
+     */
+    static int convert(File trace, File schedule) throws IOException {
+        Map<Long, Integer> numbers = new HashMap<>();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(trace), 1 << 16);
+             Writer writer = new Writer(schedule)) {
+            MVTO.Trace.read(in, (time, thread, type, xact, key, value) -> {
+                Integer txn = numbers.get(xact);
+                if (type == MVTO.Trace.BEGIN || type == MVTO.Trace.BEGIN_READ_ONLY) {
+                    numbers.put(xact, type == MVTO.Trace.BEGIN ? writer.begin() : writer.beginReadOnly());
+                } else if (txn == null) {
+                    return;
+                } else if (type == MVTO.Trace.INSERT || type == MVTO.Trace.READ || type == MVTO.Trace.WRITE
+                        || type == MVTO.Trace.INCREMENT || type == MVTO.Trace.SCAN) {
+                    writer.add(type, txn, key, value);
+                } else if (type == MVTO.Trace.COMMIT || type == MVTO.Trace.ROLLBACK) {
+                    writer.add(type, txn, 0, 0);
+                    numbers.remove(xact);
+                }
+            });
+            return writer.transactions;
+        }
+    }
+
+    /**
+     * Runs the schedule in file against MVTO, checks that every read returns the value the
+     * schedule expects and prints what it found, with the throughput, to out. A transaction
+     * MVTO rolls back has the rest of its events skipped, one the schedule leaves unfinished is
+     * rolled back at the end, and the run waits for every commit before it reports.
+     * @return whether every operation went as the schedule says.
+     */
+    static boolean run(File file, PrintStream out) throws Exception {
+        long[] xacts = new long[1024];
+        // the last transaction begun, and the commits that did not complete right away
+        int last = 0;
+        ArrayList<CompletableFuture<Void>> waiting = new ArrayList<>();
+        long unfinished = 0;
+        long events;
+        long mismatches = 0;
+        long failures = 0;
+        LongAdder commits = new LongAdder();
+        LongAdder aborts = new LongAdder();
+        long start;
+        long elapsed;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            WriteAheadLog.readFully(channel, header, 0);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("Not a schedule: " + file);
+            }
+            events = header.getLong(4);
+            if (HEADER + events * EVENT > channel.size()) {
+                throw new IOException("The schedule " + file + " is truncated.");
+            }
+            start = System.nanoTime();
+            for (long done = 0; done < events; ) {
+                long n = Math.min(events - done, CHUNK / EVENT);
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, HEADER + done * EVENT, n * EVENT);
+                for (long i = done; i < done + n; i++) {
+                    int type = chunk.get();
+                    int txn = chunk.getInt();
+                    int key = chunk.getInt();
+                    int value = chunk.getInt();
+                    if (txn >= xacts.length) {
+                        xacts = Arrays.copyOf(xacts, Math.max(xacts.length * 2, txn + 1));
+                    }
+                    if (type == MVTO.Trace.BEGIN || type == MVTO.Trace.BEGIN_READ_ONLY) {
+                        xacts[txn] = type == MVTO.Trace.BEGIN ? MVTO.beginTransaction() : MVTO.beginReadOnlyTransaction();
+                        last = Math.max(last, txn);
+                        continue;
+                    }
+                    long xact = xacts[txn];
+                    if (xact <= 0) {
+                        // never began, or rolled back already
+                        continue;
+                    }
+                    try {
+                        switch (type) {
+                            case MVTO.Trace.INSERT:
+                                MVTO.insert(xact, key, value);
+                                break;
+                            case MVTO.Trace.READ:
+                                int read = MVTO.read(xact, key);
+                                if (read != value && ++mismatches <= PRINTED) {
+                                    out.println("Event " + i + ": transaction " + txn + " read " + read + " from key " + key
+                                            + " instead of " + value + ".");
+                                }
+                                break;
+                            case MVTO.Trace.WRITE:
+                                MVTO.write(xact, key, value);
+                                break;
+                            case MVTO.Trace.INCREMENT:
+                                MVTO.increment(xact, key, value);
+                                break;
+                            case MVTO.Trace.SCAN:
+                                MVTO.scan(xact, key, value);
+                                break;
+                            case MVTO.Trace.COMMIT:
+                                xacts[txn] = 0;
+                                CompletableFuture<Void> commit = MVTO.commitAsync(xact)
+                                        .whenComplete((v, e) -> (e == null ? commits : aborts).increment());
+                                if (!commit.isDone()) {
+                                    waiting.add(commit);
+                                }
+                                break;
+                            case MVTO.Trace.ROLLBACK:
+                                // a trace also holds the rollbacks of the cascade, which replay on their own
+                                xacts[txn] = 0;
+                                if (MVTO.isActive(xact)) {
+                                    MVTO.rollback(xact);
+                                }
+                                break;
+                            default:
+                                throw new IOException("Event " + i + " of " + file + " has the unknown type " + type + ".");
+                        }
+                    } catch (IOException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        if (++failures <= PRINTED) {
+                            out.println("Event " + i + ": transaction " + txn + " failed: " + e.getMessage());
+                        }
+                        xacts[txn] = 0;
+                        if (MVTO.isActive(xact)) {
+                            MVTO.rollback(xact);
+                        }
+                    }
+                }
+                done += n;
+            }
+            // which also aborts the commits that wait for them
+            for (int txn = 1; txn <= last; txn++) {
+                if (xacts[txn] > 0) {
+                    unfinished++;
+                    if (MVTO.isActive(xacts[txn])) {
+                        MVTO.rollback(xacts[txn]);
+                    }
+                }
+            }
+            try {
+                CompletableFuture.allOf(waiting.toArray(new CompletableFuture<?>[0])).join();
+            } catch (CompletionException e) {
+                // counted in aborts
+            }
+            elapsed = System.nanoTime() - start;
+        }
+        out.printf("%d events in %.3f s: %.0f events/s, %d commits, %d aborted commits, %d mismatched reads, "
+                + "%d failed operations, %d unfinished transactions%n", events, elapsed / 1e9,
+                events * 1e9 / Math.max(elapsed, 1), commits.sum(), aborts.sum(), mismatches, failures, unfinished);
+        return mismatches == 0 && failures == 0 && aborts.sum() == 0;
+    }
+
+    // java Replay convert <trace file> <schedule file> | java Replay run <schedule file>
+    public static void main(String[] args) throws Exception {
+        if (args.length == 3 && args[0].equals("convert")) {
+            System.out.println(convert(new File(args[1]), new File(args[2])) + " transactions.");
+        } else if (args.length == 2 && args[0].equals("run")) {
+            System.exit(run(new File(args[1]), System.out) ? 0 : 1);
+        } else {
+            System.err.println("Usage: java Replay convert <trace file> <schedule file> | java Replay run <schedule file>");
+            System.exit(2);
+        }
+    }
+}
@@ -0,0 +1,703 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Serves the operations of MVTO over TCP, from one thread running a Selector event loop; none
+ * of the operations blocks, commits complete through their futures. A client pipelines its
+ * requests: it sends any number of them, e.g. a whole transaction, and reads the responses
+ * after, which come in the order of the requests. The server runs every complete request it
+ * has read and writes their responses back with one write.
+ *   java RequestServer [port]
+ *
+ * Requests, big-endian: op (byte) | xact (long) | the arguments of op, ints unless said
+ * otherwise; BEGIN and BEGIN_READ_ONLY have neither. An xact of CURRENT stands for the
+ * transaction begun last on the connection, so that a transaction is sent before its begin
+ * is answered. The bytes of INSERT_BYTES and WRITE_BYTES follow their length.
+ * Responses: OK (byte) | the result of op, or FAILED (byte) | length (short) | UTF-8 message.
+ * BEGIN answers the transaction (long), READ the value, COMPARE_AND_SET whether it wrote
+ * (byte), SCAN count | count * (key | value) and READ_BYTES length | bytes. COMMIT is answered
+ * once the transaction committed, or durably so with a commit log installed.
+ *
+ * The transactions of a connection that are still active when it closes are rolled back.
+ **/
+class RequestServer implements Closeable {
+    static final int BEGIN = 1;
+    static final int BEGIN_READ_ONLY = 2;
+    static final int INSERT = 3;
+    static final int READ = 4;
+    static final int WRITE = 5;
+    static final int COMMIT = 6;
+    static final int ROLLBACK = 7;
+    static final int SCAN = 8;
+    static final int INCREMENT = 9;
+    static final int COMPARE_AND_SET = 10;
+    static final int INSERT_BYTES = 11;
+    static final int READ_BYTES = 12;
+    static final int WRITE_BYTES = 13;
+
+    static final int OK = 0;
+    static final int FAILED = 1;
+    static final long CURRENT = 0;
+
+    // op | xact | key
+    private static final int BYTES_HEADER = 13;
+    private static final int MAX_BYTES = 64 << 20;
+    private static final int BUFFER = 64 * 1024;
+    // a connection is not read from while more than this waits to be sent to it
+    private static final int HIGH_WATER = 4 << 20;
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Thread loop;
+    // connections with commits completed since they were last looked at
+    private final Queue<Connection> completed = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    /**
+     * Listens on port, 0 for any free one, of the loopback address.
+     */
+    RequestServer(int port) throws IOException {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    RequestServer(InetSocketAddress address) throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        loop = new Thread(this::run, "mvto-server");
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Stops serving and closes every connection, rolling back their active transactions.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            loop.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                Connection connection;
+                while ((connection = completed.poll()) != null) {
+                    if (connection.key.isValid()) {
+                        serve(connection, false);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        serve((Connection) key.attachment(), key.isReadable());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("The request server stopped: " + e.getMessage());
+        } finally {
+            for (SelectionKey key: selector.keys()) {
+                if (key.attachment() != null) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    private void serve(Connection connection, boolean readable) {
+        try {
+            if (readable) {
+                connection.read();
+            }
+            connection.release();
+            connection.flush();
+        } catch (IOException e) {
+            connection.close();
+        }
+    }
+
+    private static byte[] failure(Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        String message = e.getMessage() == null ? e.toString() : e.getMessage();
+        byte[] utf8 = message.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(utf8.length, Short.MAX_VALUE);
+        return ByteBuffer.allocate(3 + length).put((byte) FAILED).putShort((short) length).put(utf8, 0, length).array();
+    }
+
+    // buffer, or a copy of it with room for n more bytes
+    private static ByteBuffer grow(ByteBuffer buffer, int n) {
+        if (buffer.remaining() >= n) {
+            return buffer;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + n));
+        buffer.flip();
+        return grown.put(buffer);
+    }
+
+    // a commit not answered yet, with the responses to the requests after it
+    private static final class Pending {
+        final CompletableFuture<Void> future;
+        ByteBuffer after = ByteBuffer.allocate(256);
+
+        Pending(CompletableFuture<Void> future) {
+            this.future = future;
+        }
+    }
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER);
+        // responses ready to be sent
+        private ByteBuffer out = ByteBuffer.allocate(BUFFER);
+        private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        // the transactions begun here and neither committed nor rolled back through here
+        private final HashSet<Long> begun = new HashSet<>();
+        private long current;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                throw new IOException("Closed by the client.");
+            }
+            in.flip();
+            int length;
+            while ((length = requestLength()) > 0 && in.remaining() >= length) {
+                int end = in.position() + length;
+                execute();
+                in.position(end);
+            }
+            in.compact();
+            if (length > in.capacity()) {
+                ByteBuffer grown = ByteBuffer.allocate(length);
+                in.flip();
+                grown.put(in);
+                in = grown;
+            }
+        }
+
+        // the length of the request in, 0 if in does not hold enough of it to tell
+        private int requestLength() throws IOException {
+            if (!in.hasRemaining()) {
+                return 0;
+            }
+            int op = in.get(in.position());
+            switch (op) {
+                case BEGIN:
+                case BEGIN_READ_ONLY:
+                    return 1;
+                case COMMIT:
+                case ROLLBACK:
+                    return 9;
+                case READ:
+                case READ_BYTES:
+                    return 13;
+                case INSERT:
+                case WRITE:
+                case SCAN:
+                case INCREMENT:
+                    return 17;
+                case COMPARE_AND_SET:
+                    return 21;
+                case INSERT_BYTES:
+                case WRITE_BYTES:
+                    if (in.remaining() < BYTES_HEADER + 4) {
+                        return 0;
+                    }
+                    int bytes = in.getInt(in.position() + BYTES_HEADER);
+                    if (bytes < 0 || bytes > MAX_BYTES) {
+                        throw new IOException("Bytes of length " + bytes);
+                    }
+                    return BYTES_HEADER + 4 + bytes;
+                default:
+                    throw new IOException("Unknown request " + op);
+            }
+        }
+
+        private void execute() {
+            int op = in.get();
+            if (op == BEGIN || op == BEGIN_READ_ONLY) {
+                current = op == BEGIN ? MVTO.beginTransaction() : MVTO.beginReadOnlyTransaction();
+                begun.add(current);
+                reserve(9).put((byte) OK).putLong(current);
+                return;
+            }
+            long xact = in.getLong();
+            if (xact == CURRENT) {
+                xact = current;
+            }
+            try {
+                switch (op) {
+                    case INSERT:
+                        MVTO.insert(xact, in.getInt(), in.getInt());
+                        reserve(1).put((byte) OK);
+                        break;
+                    case READ:
+                        int value = MVTO.read(xact, in.getInt());
+                        reserve(5).put((byte) OK).putInt(value);
+                        break;
+                    case WRITE:
+                        int written = in.getInt();
+                        MVTO.write(xact, written, in.getInt());
+                        // MVTO rolls back a write that comes too late without throwing
+                        if (!MVTO.isActive(xact)) {
+                            throw new Exception("Transaction " + xact + " was rolled back writing key " + written + ".");
+                        }
+                        reserve(1).put((byte) OK);
+                        break;
+                    case COMMIT:
+                        begun.remove(xact);
+                        commit(MVTO.commitAsync(xact));
+                        break;
+                    case ROLLBACK:
+                        begun.remove(xact);
+                        MVTO.rollback(xact);
+                        reserve(1).put((byte) OK);
+                        break;
+                    case SCAN:
+                        SortedMap<Integer, Integer> range = MVTO.scan(xact, in.getInt(), in.getInt());
+                        ByteBuffer target = reserve(5 + 8 * range.size()).put((byte) OK).putInt(range.size());
+                        for (Map.Entry<Integer, Integer> entry: range.entrySet()) {
+                            target.putInt(entry.getKey()).putInt(entry.getValue());
+                        }
+                        break;
+                    case INCREMENT:
+                        MVTO.increment(xact, in.getInt(), in.getInt());
+                        reserve(1).put((byte) OK);
+                        break;
+                    case COMPARE_AND_SET:
+                        boolean set = MVTO.compareAndSet(xact, in.getInt(), in.getInt(), in.getInt());
+                        reserve(2).put((byte) OK).put((byte) (set ? 1 : 0));
+                        break;
+                    case INSERT_BYTES:
+                    case WRITE_BYTES:
+                        int key = in.getInt();
+                        int length = in.getInt();
+                        ByteBuffer bytes = in.slice();
+                        bytes.limit(length);
+                        if (op == INSERT_BYTES) {
+                            MVTO.insertBytes(xact, key, bytes);
+                        } else {
+                            MVTO.writeBytes(xact, key, bytes);
+                        }
+                        reserve(1).put((byte) OK);
+                        break;
+                    case READ_BYTES:
+                        ByteBuffer read = MVTO.readBytes(xact, in.getInt());
+                        reserve(5 + read.remaining()).put((byte) OK).putInt(read.remaining()).put(read.duplicate());
+                        break;
+                }
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        private void commit(CompletableFuture<Void> future) {
+            pending.add(new Pending(future));
+            if (!future.isDone()) {
+                future.whenComplete((v, e) -> {
+                    completed.add(this);
+                    selector.wakeup();
+                });
+            }
+        }
+
+        private void fail(Throwable e) {
+            byte[] response = failure(e);
+            reserve(response.length).put(response);
+        }
+
+        // the buffer the next response goes to, with room for n more bytes
+        private ByteBuffer reserve(int n) {
+            Pending last = pending.peekLast();
+            if (last == null) {
+                return out = grow(out, n);
+            }
+            return last.after = grow(last.after, n);
+        }
+
+        // answers the commits that completed, in order, and the responses held behind them
+        void release() {
+            Pending head;
+            while ((head = pending.peek()) != null && head.future.isDone()) {
+                pending.poll();
+                byte[] response;
+                try {
+                    head.future.join();
+                    response = new byte[] {OK};
+                } catch (CompletionException e) {
+                    response = failure(e);
+                }
+                head.after.flip();
+                out = grow(out, response.length + head.after.remaining());
+                out.put(response).put(head.after);
+            }
+        }
+
+        void flush() throws IOException {
+            if (out.position() > 0) {
+                out.flip();
+                channel.write(out);
+                out.compact();
+            }
+            int waiting = out.position();
+            for (Pending p: pending) {
+                waiting += p.after.position();
+            }
+            key.interestOps((out.position() > 0 ? SelectionKey.OP_WRITE : 0)
+                    | (waiting < HIGH_WATER ? SelectionKey.OP_READ : 0));
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // gone anyway
+            }
+            for (long xact: begun) {
+                if (MVTO.isActive(xact)) {
+                    try {
+                        MVTO.rollback(xact);
+                    } catch (Exception e) {
+                        // rolled back meanwhile
+                    }
+                }
+            }
+            begun.clear();
+        }
+    }
+
+    /**
+     * A connection to a RequestServer. Requests are queued by the methods named after them, then
+     * sent together by sync, which returns their responses. sync reads the responses while it
+     * still writes requests, since the server stops reading from a client that does not take
+     * its responses.
+     */
+    static final class Client implements Closeable {
+        private final SocketChannel channel;
+        private final Selector selector;
+        private final SelectionKey key;
+        private ByteBuffer out = ByteBuffer.allocate(BUFFER);
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER);
+        private byte[] ops = new byte[64];
+        private int queued;
+
+        Client(int port) throws IOException {
+            this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        }
+
+        Client(InetSocketAddress address) throws IOException {
+            channel = SocketChannel.open(address);
+            channel.socket().setTcpNoDelay(true);
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            key = channel.register(selector, 0);
+        }
+
+        void begin() {
+            request(BEGIN, 1);
+        }
+
+        void beginReadOnly() {
+            request(BEGIN_READ_ONLY, 1);
+        }
+
+        void insert(long xact, int key, int value) {
+            request(INSERT, 17).putLong(xact).putInt(key).putInt(value);
+        }
+
+        void read(long xact, int key) {
+            request(READ, 13).putLong(xact).putInt(key);
+        }
+
+        void write(long xact, int key, int value) {
+            request(WRITE, 17).putLong(xact).putInt(key).putInt(value);
+        }
+
+        void scan(long xact, int fromKey, int toKey) {
+            request(SCAN, 17).putLong(xact).putInt(fromKey).putInt(toKey);
+        }
+
+        void increment(long xact, int key, int delta) {
+            request(INCREMENT, 17).putLong(xact).putInt(key).putInt(delta);
+        }
+
+        void compareAndSet(long xact, int key, int expected, int newValue) {
+            request(COMPARE_AND_SET, 21).putLong(xact).putInt(key).putInt(expected).putInt(newValue);
+        }
+
+        void insertBytes(long xact, int key, ByteBuffer value) {
+            bytes(INSERT_BYTES, xact, key, value);
+        }
+
+        void readBytes(long xact, int key) {
+            request(READ_BYTES, 13).putLong(xact).putInt(key);
+        }
+
+        void writeBytes(long xact, int key, ByteBuffer value) {
+            bytes(WRITE_BYTES, xact, key, value);
+        }
+
+        void commit(long xact) {
+            request(COMMIT, 9).putLong(xact);
+        }
+
+        void rollback(long xact) {
+            request(ROLLBACK, 9).putLong(xact);
+        }
+
+        private void bytes(int op, long xact, int key, ByteBuffer value) {
+            if (value.remaining() > MAX_BYTES) {
+                throw new IllegalArgumentException("Bytes of length " + value.remaining());
+            }
+            request(op, BYTES_HEADER + 4 + value.remaining()).putLong(xact).putInt(key).putInt(value.remaining())
+                    .put(value.duplicate());
+        }
+
+        private ByteBuffer request(int op, int length) {
+            out = grow(out, length);
+            if (queued == ops.length) {
+                ops = Arrays.copyOf(ops, queued * 2);
+            }
+            ops[queued++] = (byte) op;
+            return out.put((byte) op);
+        }
+
+        /**
+         * Sends the queued requests and waits for their responses.
+         */
+        Results sync() throws IOException {
+            Results results = new Results(queued);
+            out.flip();
+            in.clear();
+            int done = 0;
+            while (done < queued) {
+                boolean progress = out.hasRemaining() && channel.write(out) > 0;
+                int read = channel.read(in);
+                if (read < 0) {
+                    throw new IOException("The server closed the connection.");
+                }
+                in.flip();
+                int length = 0;
+                while (done < queued && (length = responseLength(ops[done])) > 0 && in.remaining() >= length) {
+                    decode(results, done++);
+                }
+                in.compact();
+                if (length > in.capacity()) {
+                    in = grow(in, length - in.position());
+                }
+                if (!progress && read == 0 && done < queued) {
+                    key.interestOps(SelectionKey.OP_READ | (out.hasRemaining() ? SelectionKey.OP_WRITE : 0));
+                    selector.select();
+                    selector.selectedKeys().clear();
+                }
+            }
+            out.clear();
+            queued = 0;
+            return results;
+        }
+
+        // the length of the response to op in, 0 if in does not hold enough of it to tell
+        private int responseLength(int op) {
+            int at = in.position();
+            if (!in.hasRemaining()) {
+                return 0;
+            }
+            if (in.get(at) == FAILED) {
+                return in.remaining() < 3 ? 0 : 3 + in.getShort(at + 1);
+            }
+            switch (op) {
+                case BEGIN:
+                case BEGIN_READ_ONLY:
+                    return 9;
+                case READ:
+                    return 5;
+                case COMPARE_AND_SET:
+                    return 2;
+                case SCAN:
+                    return in.remaining() < 5 ? 0 : 5 + 8 * in.getInt(at + 1);
+                case READ_BYTES:
+                    return in.remaining() < 5 ? 0 : 5 + in.getInt(at + 1);
+                default:
+                    return 1;
+            }
+        }
+
+        // decodes the response to request i, which in holds whole
+        private void decode(Results results, int i) {
+            if (in.get() == FAILED) {
+                byte[] utf8 = new byte[in.getShort()];
+                in.get(utf8);
+                results.errors[i] = new String(utf8, StandardCharsets.UTF_8);
+                return;
+            }
+            switch (ops[i]) {
+                case BEGIN:
+                case BEGIN_READ_ONLY:
+                    results.values[i] = in.getLong();
+                    break;
+                case READ:
+                    results.values[i] = in.getInt();
+                    break;
+                case COMPARE_AND_SET:
+                    results.values[i] = in.get();
+                    break;
+                case SCAN:
+                    int count = in.getInt();
+                    SortedMap<Integer, Integer> range = new TreeMap<>();
+                    for (int n = 0; n < count; n++) {
+                        range.put(in.getInt(), in.getInt());
+                    }
+                    results.objects[i] = range;
+                    break;
+                case READ_BYTES:
+                    byte[] bytes = new byte[in.getInt()];
+                    in.get(bytes);
+                    results.objects[i] = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            selector.close();
+        }
+    }
+
+    /**
+     * The responses to the requests of a sync, in their order. A getter throws the exception of
+     * a request that failed, with the server's message.
+     */
+    static final class Results {
+        private final long[] values;
+        private final Object[] objects;
+        private final String[] errors;
+
+        private Results(int count) {
+            values = new long[count];
+            objects = new Object[count];
+            errors = new String[count];
+        }
+
+        int size() {
+            return values.length;
+        }
+
+        boolean failed(int i) {
+            return errors[i] != null;
+        }
+
+        // null if request i succeeded
+        String getError(int i) {
+            return errors[i];
+        }
+
+        // the transaction of a begin
+        long getLong(int i) throws Exception {
+            check(i);
+            return values[i];
+        }
+
+        // the value of a read
+        int getInt(int i) throws Exception {
+            check(i);
+            return (int) values[i];
+        }
+
+        // whether a compareAndSet wrote
+        boolean getBoolean(int i) throws Exception {
+            check(i);
+            return values[i] != 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        SortedMap<Integer, Integer> getRange(int i) throws Exception {
+            check(i);
+            return (SortedMap<Integer, Integer>) objects[i];
+        }
+
+        ByteBuffer getBytes(int i) throws Exception {
+            check(i);
+            return (ByteBuffer) objects[i];
+        }
+
+        // throws the failure of request i, if any
+        void check(int i) throws Exception {
+            if (errors[i] != null) {
+                throw new Exception(errors[i]);
+            }
+        }
+    }
+
+    // java RequestServer [port]
+    public static void main(String[] args) throws Exception {
+        RequestServer server = new RequestServer(args.length > 0 ? Integer.parseInt(args[0]) : 0);
+        System.out.println("Serving MVTO on port " + server.getPort());
+        server.loop.join();
+    }
+}
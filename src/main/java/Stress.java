@@ -0,0 +1,210 @@
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Randomized workload run against MVTO, or a PartitionedMVTO, from several threads at once,
+ * which records a History of what each transaction saw and checks it once done:
+ *   java Stress <history file> [threads] [seconds] [keys] [partitions]
+ * A transaction reads and writes a few of the keys inserted up front, now and then inserts a
+ * new key or rolls itself back, and commits; some are read-only. Written values come from a
+ * global counter, so that each one is unique. Exits with 1 if the history is not serializable.
+ **/
+class Stress {
+    private static final int MAX_OPERATIONS = 8;
+    private static final int READ_ONLY_PERCENT = 20;
+    private static final int INSERT_PERCENT = 5;
+    private static final int ROLLBACK_PERCENT = 2;
+
+    // the operations the workload runs, on the static MVTO or on a PartitionedMVTO
+    private interface Store {
+        long begin();
+
+        long beginReadOnly();
+
+        void insert(long xact, int key, int value) throws Exception;
+
+        int read(long xact, int key) throws Exception;
+
+        void write(long xact, int key, int value) throws Exception;
+
+        CompletableFuture<Void> commitAsync(long xact);
+
+        void rollback(long xact) throws Exception;
+    }
+
+    private final Store store;
+    private final History history = new History();
+    private final int keys;
+    private final AtomicInteger nextKey;
+    private final AtomicInteger nextValue = new AtomicInteger(1);
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder rollbacks = new LongAdder();
+
+    private Stress(Store store, int keys) {
+        this.store = store;
+        this.keys = keys;
+        this.nextKey = new AtomicInteger(keys);
+    }
+
+    private void load() throws Exception {
+        History.Recorder recorder = history.recorder();
+        long xact = store.begin();
+        recorder.record(MVTO.Trace.BEGIN, xact, 0, 0);
+        for (int key = 0; key < keys; key++) {
+            int value = nextValue.getAndIncrement();
+            recorder.record(MVTO.Trace.INSERT, xact, key, value);
+            store.insert(xact, key, value);
+        }
+        store.commitAsync(xact).get();
+        recorder.record(MVTO.Trace.COMMIT, xact, 0, 0);
+    }
+
+    private void run(long deadline, long seed) {
+        History.Recorder recorder = history.recorder();
+        Random random = new Random(seed);
+        while (System.nanoTime() < deadline) {
+            boolean readOnly = random.nextInt(100) < READ_ONLY_PERCENT;
+            long xact = readOnly ? store.beginReadOnly() : store.begin();
+            recorder.record(readOnly ? MVTO.Trace.BEGIN_READ_ONLY : MVTO.Trace.BEGIN, xact, 0, 0);
+            if (runTransaction(recorder, random, xact, readOnly)) {
+                commits.increment();
+                recorder.record(MVTO.Trace.COMMIT, xact, 0, 0);
+            } else {
+                rollbacks.increment();
+                recorder.record(MVTO.Trace.ROLLBACK, xact, 0, 0);
+            }
+        }
+    }
+
+    // returns whether xact committed; the keys it touches exist, so every failure rolled it back
+    private boolean runTransaction(History.Recorder recorder, Random random, long xact, boolean readOnly) {
+        try {
+            int inserted = -1;
+            for (int n = 1 + random.nextInt(MAX_OPERATIONS); n > 0; n--) {
+                int dice = random.nextInt(100);
+                int key = inserted >= 0 && random.nextBoolean() ? inserted : random.nextInt(keys);
+                if (readOnly || dice < 50) {
+                    recorder.record(MVTO.Trace.READ, xact, key, store.read(xact, key));
+                } else if (dice < 50 + ROLLBACK_PERCENT) {
+                    store.rollback(xact);
+                    return false;
+                } else if (dice < 50 + ROLLBACK_PERCENT + INSERT_PERCENT) {
+                    inserted = nextKey.getAndIncrement();
+                    int value = nextValue.getAndIncrement();
+                    recorder.record(MVTO.Trace.INSERT, xact, inserted, value);
+                    store.insert(xact, inserted, value);
+                } else {
+                    int value = nextValue.getAndIncrement();
+                    recorder.record(MVTO.Trace.WRITE, xact, key, value);
+                    store.write(xact, key, value);
+                }
+            }
+            store.commitAsync(xact).get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            // refused by MVTO, directly or through the commit future
+            return false;
+        }
+    }
+
+    private static Store onMVTO() {
+        return new Store() {
+            public long begin() {
+                return MVTO.beginTransaction();
+            }
+
+            public long beginReadOnly() {
+                return MVTO.beginReadOnlyTransaction();
+            }
+
+            public void insert(long xact, int key, int value) throws Exception {
+                MVTO.insert(xact, key, value);
+            }
+
+            public int read(long xact, int key) throws Exception {
+                return MVTO.read(xact, key);
+            }
+
+            public void write(long xact, int key, int value) throws Exception {
+                MVTO.write(xact, key, value);
+            }
+
+            public CompletableFuture<Void> commitAsync(long xact) {
+                return MVTO.commitAsync(xact);
+            }
+
+            public void rollback(long xact) throws Exception {
+                MVTO.rollback(xact);
+            }
+        };
+    }
+
+    private static Store onPartitions(MVTO.PartitionedMVTO partitioned) {
+        return new Store() {
+            public long begin() {
+                return partitioned.beginTransaction();
+            }
+
+            public long beginReadOnly() {
+                return partitioned.beginReadOnlyTransaction();
+            }
+
+            public void insert(long xact, int key, int value) throws Exception {
+                partitioned.insert(xact, key, value);
+            }
+
+            public int read(long xact, int key) throws Exception {
+                return partitioned.read(xact, key);
+            }
+
+            public void write(long xact, int key, int value) throws Exception {
+                partitioned.write(xact, key, value);
+            }
+
+            public CompletableFuture<Void> commitAsync(long xact) {
+                return partitioned.commitAsync(xact);
+            }
+
+            public void rollback(long xact) throws Exception {
+                partitioned.rollback(xact);
+            }
+        };
+    }
+
+    // java Stress <history file> [threads] [seconds] [keys] [partitions]
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java Stress <history file> [threads] [seconds] [keys] [partitions, 0 for MVTO]");
+            System.exit(2);
+        }
+        File file = new File(args[0]);
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int keys = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        int partitions = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+        Stress stress = new Stress(partitions > 0 ? onPartitions(new MVTO.PartitionedMVTO(partitions)) : onMVTO(), keys);
+        stress.load();
+
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            long seed = i;
+            workers[i] = new Thread(() -> stress.run(deadline, seed), "stress-" + i);
+            workers[i].start();
+        }
+        for (Thread worker: workers) {
+            worker.join();
+        }
+        System.out.println(stress.commits.sum() / seconds + " commits/s, " + stress.rollbacks.sum() / seconds + " rollbacks/s on "
+                + threads + " threads");
+
+        stress.history.write(file);
+        System.exit(History.report(file, System.out) ? 0 : 1);
+    }
+}
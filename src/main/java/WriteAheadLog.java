@@ -0,0 +1,369 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log that makes the commits of MVTO durable. A committing transaction appends
+ * its writes to an in-memory batch; a single flusher thread writes the whole batch with one
+ * FileChannel write and one fsync, then completes the commit futures of every transaction in
+ * it (group commit). Opening the log replays it into the store first.
+ *
+ * The log is a directory of segment files wal-N.log, appended to in order. A checkpoint rolls
+ * over to a new segment and deletes the ones that only hold transactions it covers.
+ *
+ * Record layout, big-endian, timestamps are longs and the rest ints:
+ * length | crc32 of payload | payload = xact | count | count * (key | wts | kind | value),
+ * where kind tells a value from a delta added to the value before it (MVTO.FULL, MVTO.DELTA)
+ * or from bytes (MVTO.BYTES), whose count is the value and which follow it
+ **/
+class WriteAheadLog implements MVTO.CommitLog {
+    private static final int HEADER = 8;
+    // xact | count
+    private static final int PREFIX = 12;
+    // without the bytes of a MVTO.BYTES entry
+    private static final int ENTRY = 20;
+    private static final int INITIAL_BATCH = 64 * 1024;
+    private static final Pattern SEGMENT = Pattern.compile("wal-(\\d+)\\.log");
+
+    private final File dir;
+    private final Thread flusher;
+    private final CRC32 crc = new CRC32();
+
+    // the segment appended to, and the newest transaction in it
+    private FileChannel channel;
+    private int segment;
+    private long segmentMaxXact;
+    // older segments by number, with the newest transaction in each
+    private final TreeMap<Integer, Long> closedSegments;
+
+    // appends go to batch while the flusher writes flushing, the two are swapped per sync
+    private ByteBuffer batch = ByteBuffer.allocate(INITIAL_BATCH);
+    private ByteBuffer flushing = ByteBuffer.allocate(INITIAL_BATCH);
+    private ArrayList<MVTO.Commit> batchTxns = new ArrayList<>();
+    private ArrayList<MVTO.Commit> flushingTxns = new ArrayList<>();
+    private boolean flushInProgress;
+    private boolean closed;
+
+    private volatile long records;
+    private volatile long syncs;
+
+    private WriteAheadLog(File dir, TreeMap<Integer, Long> segments) throws IOException {
+        this.dir = dir;
+        Map.Entry<Integer, Long> last = segments.pollLastEntry();
+        this.segment = last == null ? 1 : last.getKey();
+        this.segmentMaxXact = last == null ? 0 : last.getValue();
+        this.closedSegments = segments;
+        this.channel = openSegment(segment);
+        this.channel.position(this.channel.size());
+        this.flusher = new Thread(this::flushLoop, "mvto-wal");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Replays the log in dir into MVTO and makes every later commit durable in it.
+     * Must be called before the store is used.
+     */
+    public static WriteAheadLog open(File dir) throws IOException {
+        return open(dir, 0);
+    }
+
+    /**
+     * Like open(dir), but only replays the transactions newer than fromXact, e.g. the ones
+     * committed after a checkpoint taken at fromXact.
+     */
+    public static WriteAheadLog open(File dir, long fromXact) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create the log directory " + dir);
+        }
+        TreeMap<Integer, Long> segments = new TreeMap<>();
+        String[] names = dir.list();
+        for (String name: names == null ? new String[0] : names) {
+            Matcher m = SEGMENT.matcher(name);
+            if (m.matches()) {
+                segments.put(Integer.parseInt(m.group(1)), 0L);
+            }
+        }
+        for (Map.Entry<Integer, Long> entry: segments.entrySet()) {
+            try (FileChannel channel = FileChannel.open(segmentFile(dir, entry.getKey()).toPath(),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long[] maxXact = new long[1];
+                // a torn record at the end of a segment was never acknowledged, drop it
+                channel.truncate(replay(channel, fromXact, maxXact));
+                entry.setValue(maxXact[0]);
+            }
+        }
+        // collapses the chains restored out of timestamp order
+        MVTO.collectGarbage();
+        WriteAheadLog log = new WriteAheadLog(dir, segments);
+        MVTO.setCommitLog(log);
+        return log;
+    }
+
+    @Override
+    public void append(MVTO.Commit txn) {
+        int count = txn.getLogSize();
+        int length = PREFIX + ENTRY * count;
+        ByteBuffer[] payloads = null;
+        for (int i = 0; i < count; i++) {
+            if (txn.getLoggedKind(i) == MVTO.BYTES) {
+                if (payloads == null) {
+                    payloads = new ByteBuffer[count];
+                }
+                payloads[i] = txn.getLoggedBytes(i);
+                length += payloads[i].remaining();
+            }
+        }
+        synchronized (this) {
+            if (closed) {
+                txn.complete(new IOException("The write-ahead log is closed."));
+                return;
+            }
+            if (batch.remaining() < HEADER + length) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(batch.capacity() * 2, batch.position() + HEADER + length));
+                batch.flip();
+                grown.put(batch);
+                batch = grown;
+            }
+            int start = batch.position();
+            batch.putInt(length);
+            batch.putInt(0);
+            batch.putLong(txn.getTimestamp());
+            batch.putInt(count);
+            for (int i = 0; i < count; i++) {
+                batch.putInt(txn.getLoggedKey(i));
+                batch.putLong(txn.getLoggedWts(i));
+                if (payloads != null && payloads[i] != null) {
+                    batch.putInt(MVTO.BYTES);
+                    batch.putInt(payloads[i].remaining());
+                    batch.put(payloads[i]);
+                } else {
+                    batch.putInt(txn.getLoggedKind(i));
+                    batch.putInt(txn.getLoggedContent(i));
+                }
+            }
+            crc.reset();
+            crc.update(batch.array(), start + HEADER, length);
+            batch.putInt(start + 4, (int) crc.getValue());
+            batchTxns.add(txn);
+            segmentMaxXact = Math.max(segmentMaxXact, txn.getTimestamp());
+            records++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until everything appended so far is durable and continues in a new segment.
+     * Appends block meanwhile, for at most one fsync.
+     */
+    public synchronized void roll() throws IOException {
+        while (batch.position() > 0 || flushInProgress) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while rolling the write-ahead log.", e);
+            }
+        }
+        channel.force(true);
+        channel.close();
+        closedSegments.put(segment, segmentMaxXact);
+        segment++;
+        segmentMaxXact = 0;
+        channel = openSegment(segment);
+    }
+
+    /**
+     * Deletes the segments, older than the current one, that only hold transactions at or
+     * below xact; called once a checkpoint at xact is durable.
+     */
+    public synchronized void truncate(long xact) throws IOException {
+        Iterator<Map.Entry<Integer, Long>> it = closedSegments.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Long> entry = it.next();
+            if (entry.getValue() <= xact) {
+                File file = segmentFile(dir, entry.getKey());
+                if (file.exists() && !file.delete()) {
+                    throw new IOException("Cannot delete " + file);
+                }
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Waits until everything appended so far is durable, stops the flusher and uninstalls the log.
+     */
+    public void close() throws IOException {
+        MVTO.setCommitLog(null);
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    /**
+     * @return the number of transactions appended to the log.
+     */
+    public long getRecordCount() {
+        return records;
+    }
+
+    /**
+     * @return the number of fsyncs, each one covers a batch of transactions.
+     */
+    public long getSyncCount() {
+        return syncs;
+    }
+
+    private void flushLoop() {
+        while (true) {
+            FileChannel target;
+            synchronized (this) {
+                while (batch.position() == 0 && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // only close stops the flusher, appends are still waiting for it
+                    }
+                }
+                if (batch.position() == 0) {
+                    return;
+                }
+                flushInProgress = true;
+                target = channel;
+                ByteBuffer full = batch;
+                batch = flushing;
+                flushing = full;
+                ArrayList<MVTO.Commit> fullTxns = batchTxns;
+                batchTxns = flushingTxns;
+                flushingTxns = fullTxns;
+            }
+            flushing.flip();
+            IOException failure = null;
+            try {
+                while (flushing.hasRemaining()) {
+                    target.write(flushing);
+                }
+                target.force(false);
+                syncs++;
+            } catch (IOException e) {
+                failure = e;
+            }
+            for (MVTO.Commit txn: flushingTxns) {
+                txn.complete(failure);
+            }
+            flushing.clear();
+            flushingTxns.clear();
+            synchronized (this) {
+                flushInProgress = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private FileChannel openSegment(int number) throws IOException {
+        return FileChannel.open(segmentFile(dir, number).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static File segmentFile(File dir, int number) {
+        return new File(dir, "wal-" + number + ".log");
+    }
+
+    // returns the position after the last intact record, maxXact[0] is set to the newest transaction
+    private static long replay(FileChannel channel, long fromXact, long[] maxXact) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        ByteBuffer payload = ByteBuffer.allocate(INITIAL_BATCH);
+        CRC32 crc = new CRC32();
+        long size = channel.size();
+        long position = 0;
+        while (position + HEADER <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            int length = header.getInt(0);
+            int checksum = header.getInt(4);
+            if (length < PREFIX || position + HEADER + length > size) {
+                break;
+            }
+            if (payload.capacity() < length) {
+                payload = ByteBuffer.allocate(length);
+            }
+            payload.clear().limit(length);
+            readFully(channel, payload, position + HEADER);
+            crc.reset();
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            payload.flip();
+            long xact = payload.getLong();
+            int count = payload.getInt();
+            if (!holdsEntries(payload, count)) {
+                break;
+            }
+            maxXact[0] = Math.max(maxXact[0], xact);
+            if (xact > fromXact) {
+                for (int i = 0; i < count; i++) {
+                    int key = payload.getInt();
+                    long wts = payload.getLong();
+                    int kind = payload.getInt();
+                    int value = payload.getInt();
+                    if (kind == MVTO.BYTES) {
+                        byte[] bytes = new byte[value];
+                        payload.get(bytes);
+                        MVTO.restore(key, ByteBuffer.wrap(bytes), wts, xact);
+                    } else {
+                        MVTO.restore(key, value, wts, kind, xact);
+                    }
+                }
+            }
+            position += HEADER + length;
+        }
+        return position;
+    }
+
+    // whether the rest of payload is exactly count entries, which it is left positioned at
+    private static boolean holdsEntries(ByteBuffer payload, int count) {
+        int at = payload.position();
+        for (int i = 0; i < count; i++) {
+            if (payload.limit() - at < ENTRY) {
+                return false;
+            }
+            if (payload.getInt(at + 12) == MVTO.BYTES) {
+                int bytes = payload.getInt(at + 16);
+                if (bytes < 0 || payload.limit() - at - ENTRY < bytes) {
+                    return false;
+                }
+                at += bytes;
+            }
+            at += ENTRY;
+        }
+        return at == payload.limit();
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of the write-ahead log at " + position);
+            }
+            position += read;
+        }
+    }
+}
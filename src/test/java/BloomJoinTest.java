@@ -0,0 +1,71 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * The Bloom filter NodeA ships to NodeB, and the join the two compute with it.
+ */
+public class BloomJoinTest {
+    @Test
+    public void keepsTheTargetFalsePositiveRate() {
+        int keys = 100000;
+        int probes = 1000000;
+        for (double rate: new double[] {0.1, 0.01, 0.001}) {
+            BloomJoin.BloomFilter filter = new BloomJoin.BloomFilter(keys, rate);
+            for (int key = 0; key < keys; key++) {
+                filter.add(key * 2);
+            }
+            for (int key = 0; key < keys; key++) {
+                assertTrue("Key " + key * 2 + " was added", filter.mightContain(key * 2));
+            }
+            int positives = 0;
+            for (int i = 0; i < probes; i++) {
+                // odd keys were never added
+                if (filter.mightContain(i * 2 + 1)) {
+                    positives++;
+                }
+            }
+            double measured = (double) positives / probes;
+            assertTrue("Measured " + measured + " for a target of " + rate, measured < rate * 1.2);
+            assertTrue("Measured " + measured + " for a target of " + rate, measured > rate * 0.5);
+        }
+    }
+
+    @Test
+    public void takesTheHashCountFromTheOptimalSize() {
+        // 9.6 bits per key at 1%, whatever the filter is rounded up to
+        assertEquals(7, new BloomJoin.BloomFilter(1, 0.01).getHashes());
+        assertEquals(7, new BloomJoin.BloomFilter(1000, 0.01).getHashes());
+        assertEquals(64, new BloomJoin.BloomFilter(1, 0.01).getBits());
+        assertEquals(30, new BloomJoin.BloomFilter(10, 1e-15).getHashes());
+        assertEquals(1, new BloomJoin.BloomFilter(1000, 0.9).getHashes());
+    }
+
+    @Test
+    public void joinsEveryMatchingPair() {
+        Random random = new Random(1);
+        List<BloomJoin.R> r = new ArrayList<>();
+        List<BloomJoin.S> s = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            r.add(new BloomJoin.R(i, random.nextInt(100000)));
+            s.add(new BloomJoin.S(random.nextInt(100000), i));
+        }
+        Map<Integer, Integer> rPerKey = new HashMap<>();
+        for (BloomJoin.R tuple: r) {
+            rPerKey.merge(tuple.getB(), 1, Integer::sum);
+        }
+        int expected = 0;
+        for (BloomJoin.S tuple: s) {
+            expected += rPerKey.getOrDefault(tuple.getB(), 0);
+        }
+        BloomJoin.NodeA a = new BloomJoin.NodeA(r);
+        a.run(new BloomJoin.NodeB(s));
+        assertEquals(expected, a.getResult().size());
+    }
+}
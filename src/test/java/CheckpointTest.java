@@ -0,0 +1,93 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checkpoints across restarts: every step runs main in a JVM of its own, which recovers the
+ * store from a directory, works on it and closes the log again.
+ */
+public class CheckpointTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 120000)
+    public void recoversTheCheckpointAndTheLogWrittenAfterIt() throws Exception {
+        File dir = folder.newFolder();
+        step("load", dir);
+        assertTrue(new File(dir, "checkpoint").exists());
+        // what the checkpoint holds is only in the checkpoint
+        assertFalse(new File(dir, "wal-1.log").exists());
+        assertTrue(new File(dir, "wal-2.log").exists());
+        assertEquals("10 2 3 four 5", step("dump", dir, "1", "2", "3", "b4", "5"));
+    }
+
+    @Test(timeout = 120000)
+    public void replacesTheCheckpointAfterARecovery() throws Exception {
+        File dir = folder.newFolder();
+        step("load", dir);
+        step("update", dir);
+        assertFalse(new File(dir, "wal-2.log").exists());
+        assertTrue(new File(dir, "wal-3.log").exists());
+        assertFalse(new File(dir, "checkpoint.tmp").exists());
+        assertEquals("10 20 3 four 5", step("dump", dir, "1", "2", "3", "b4", "5"));
+        // a recovery without commits leaves the state as it is
+        assertEquals("10 20 3 four 5", step("dump", dir, "1", "2", "3", "b4", "5"));
+    }
+
+    private static String step(String name, File dir, String... keys) throws Exception {
+        String[] args = new String[keys.length + 2];
+        args[0] = name;
+        args[1] = dir.getPath();
+        System.arraycopy(keys, 0, args, 2, keys.length);
+        return ChildJvm.run(CheckpointTest.class, args);
+    }
+
+    // java CheckpointTest <step> <directory> [keys, b for the bytes ones]
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args[1]);
+        WriteAheadLog log = Checkpoint.recover(dir);
+        String printed = "";
+        switch (args[0]) {
+            case "load": {
+                long xact = MVTO.beginTransaction();
+                MVTO.insert(xact, 1, 1);
+                MVTO.insert(xact, 2, 2);
+                MVTO.insert(xact, 3, 3);
+                MVTO.insertBytes(xact, 4, WriteAheadLogTest.bytes("four"));
+                MVTO.commitAsync(xact).get();
+                Checkpoint.take(dir, log);
+                xact = MVTO.beginTransaction();
+                MVTO.write(xact, 1, 10);
+                MVTO.insert(xact, 5, 5);
+                MVTO.commitAsync(xact).get();
+                break;
+            }
+            case "update": {
+                long xact = MVTO.beginTransaction();
+                MVTO.increment(xact, 2, 18);
+                MVTO.commitAsync(xact).get();
+                Checkpoint.take(dir, log);
+                break;
+            }
+            case "dump": {
+                long xact = MVTO.beginReadOnlyTransaction();
+                StringBuilder values = new StringBuilder();
+                for (int i = 2; i < args.length; i++) {
+                    values.append(i > 2 ? " " : "").append(WriteAheadLogTest.read(xact, args[i]));
+                }
+                MVTO.commit(xact);
+                printed = values.toString();
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown step " + args[0]);
+        }
+        log.close();
+        System.out.println(printed);
+    }
+}
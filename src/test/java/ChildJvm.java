@@ -0,0 +1,62 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * Runs the main method of a class in a JVM of its own, for tests that need a static MVTO of
+ * their own, e.g. to restart it from its log.
+ */
+final class ChildJvm {
+    private static final long TIMEOUT_SECONDS = 120;
+
+    private ChildJvm() {
+    }
+
+    /**
+     * Runs main with args and checks that it exits with 0; what it wrote to stderr is passed
+     * on to the test's.
+     * @return the last line main printed, which MVTO's own messages come before.
+     */
+    static String run(Class<?> main, String... args) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.add("-cp");
+        command.add(classPath(main, MVTO.class, Test.class));
+        command.add(main.getName());
+        command.addAll(Arrays.asList(args));
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream in = process.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) >= 0; ) {
+                output.write(buffer, 0, n);
+            }
+        }
+        if (!process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+        }
+        assertTrue(command + " did not finish", !process.isAlive());
+        String printed = output.toString().trim();
+        assertEquals(command + " printed:\n" + printed, 0, process.exitValue());
+        return printed.substring(printed.lastIndexOf('\n') + 1);
+    }
+
+    private static String classPath(Class<?>... classes) throws Exception {
+        StringBuilder path = new StringBuilder();
+        for (Class<?> c: classes) {
+            if (path.length() > 0) {
+                path.append(File.pathSeparatorChar);
+            }
+            path.append(new File(c.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath());
+        }
+        return path.toString();
+    }
+}
@@ -0,0 +1,110 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The serializability check of History, on histories written by hand, where keys are 1 (x)
+ * and 2 (y), and on the ones Stress records.
+ */
+public class HistoryTest {
+    private static final int BEGIN = MVTO.Trace.BEGIN;
+    private static final int INSERT = MVTO.Trace.INSERT;
+    private static final int READ = MVTO.Trace.READ;
+    private static final int WRITE = MVTO.Trace.WRITE;
+    private static final int COMMIT = MVTO.Trace.COMMIT;
+    private static final int ROLLBACK = MVTO.Trace.ROLLBACK;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final History history = new History();
+    private final StringBuilder summary = new StringBuilder();
+
+    @Test
+    public void acceptsASerializableHistory() throws Exception {
+        load();
+        transaction(2, READ, 1, 1, WRITE, 2, 3, COMMIT);
+        transaction(3, READ, 2, 3, READ, 1, 1, COMMIT);
+        // writes x twice and reads its own second version
+        transaction(4, WRITE, 1, 4, WRITE, 1, 5, READ, 1, 5, COMMIT);
+        transaction(5, READ, 1, 5, COMMIT);
+        assertEquals(Arrays.asList(), check());
+        assertTrue(summary.toString(), summary.toString().startsWith("20 events, 5 committed and 0 rolled back"));
+    }
+
+    @Test
+    public void findsACycleOfDependencies() throws Exception {
+        load();
+        // write skew: each one reads what the other one overwrites
+        transaction(2, READ, 1, 1, WRITE, 2, 20, COMMIT);
+        transaction(3, READ, 2, 2, WRITE, 1, 30, COMMIT);
+        List<String> anomalies = check();
+        assertEquals(anomalies.toString(), 1, anomalies.size());
+        assertTrue(anomalies.get(0), anomalies.get(0).startsWith("The committed transactions are not serializable"));
+        assertTrue(anomalies.get(0), anomalies.get(0).endsWith(" 2 -> 3 -> 2") || anomalies.get(0).endsWith(" 3 -> 2 -> 3"));
+    }
+
+    @Test
+    public void findsAReadOfAVersionThatNeverCommitted() throws Exception {
+        load();
+        transaction(2, WRITE, 1, 5, ROLLBACK);
+        transaction(3, READ, 1, 5, COMMIT);
+        // overwritten by its own writer before the commit
+        transaction(4, WRITE, 2, 6, WRITE, 2, 7, COMMIT);
+        transaction(5, READ, 2, 6, COMMIT);
+        assertEquals(Arrays.asList(
+                "Transaction 3 read 5 from key 1, written by 2 which did not commit.",
+                "Transaction 5 read 6 from key 2, which 4 overwrote before committing."), check());
+        assertTrue(summary.toString(), summary.toString().contains(" 4 committed and 1 rolled back"));
+    }
+
+    @Test
+    public void findsReadsOfValuesNoOneWrote() throws Exception {
+        load();
+        transaction(2, READ, 1, 9, READ, 2, 1, COMMIT);
+        // a rolled back reader is not checked
+        transaction(3, READ, 1, 9, ROLLBACK);
+        assertEquals(Arrays.asList(
+                "Transaction 2 read 9 from key 1, which no one wrote.",
+                "Transaction 2 read 1 from key 2 but it was written to key 1."), check());
+    }
+
+    @Test(timeout = 120000)
+    public void checksTheHistoryOfAStressRun() throws Exception {
+        // 4 threads for a second on 200 keys, in a JVM of its own since Stress exits
+        assertEquals("Serializable.", ChildJvm.run(Stress.class, folder.newFile().getPath(), "4", "1", "200", "0"));
+    }
+
+    @Test(timeout = 120000)
+    public void checksTheHistoryOfAStressRunOnPartitions() throws Exception {
+        assertEquals("Serializable.", ChildJvm.run(Stress.class, folder.newFile().getPath(), "4", "1", "200", "2"));
+    }
+
+    // transaction 1 inserts x = 1 and y = 2
+    private void load() {
+        transaction(1, INSERT, 1, 1, INSERT, 2, 2, COMMIT);
+    }
+
+    // records xact with its events, type | key | value each, ending with a COMMIT or ROLLBACK
+    private void transaction(long xact, int... events) {
+        History.Recorder recorder = history.recorder();
+        recorder.record(BEGIN, xact, 0, 0);
+        int e = 0;
+        for (; e + 1 < events.length; e += 3) {
+            recorder.record(events[e], xact, events[e + 1], events[e + 2]);
+        }
+        recorder.record(events[e], xact, 0, 0);
+    }
+
+    private List<String> check() throws Exception {
+        File file = folder.newFile();
+        history.write(file);
+        return History.check(file, summary);
+    }
+}
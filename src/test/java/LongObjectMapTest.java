@@ -0,0 +1,120 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+/**
+ * The map of the store and of the active transactions, with a single segment so that every
+ * key lands in the same table and rehashes it.
+ */
+public class LongObjectMapTest {
+    @Test
+    public void keepsEveryKeyAcrossRehashes() {
+        MVTO.LongObjectMap<Long> map = new MVTO.LongObjectMap<>(1);
+        int count = 100000;
+        for (int i = 0; i < count; i++) {
+            assertNull(map.put(key(i), (long) i));
+        }
+        assertEquals(count, map.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(Long.valueOf(i), map.get(key(i)));
+        }
+        assertNull(map.get(key(count)));
+        Long old = map.get(key(7));
+        assertSame(old, map.putIfAbsent(key(7), -1L));
+        assertSame(old, map.put(key(7), -7L));
+        assertEquals(Long.valueOf(-7), map.get(key(7)));
+        assertEquals(count, map.size());
+        Set<Long> values = new HashSet<>();
+        for (Long value: map.values()) {
+            values.add(value);
+        }
+        assertEquals(count, values.size());
+    }
+
+    @Test
+    public void reusesTheTombstonesOfRemovedKeys() {
+        MVTO.LongObjectMap<Long> map = new MVTO.LongObjectMap<>(1);
+        // fills the first table up to its threshold
+        for (int i = 0; i < 12; i++) {
+            map.put(key(i), (long) i);
+        }
+        for (int round = 0; round < 1000; round++) {
+            for (int i = 0; i < 12; i += 2) {
+                assertEquals(Long.valueOf(i), map.remove(key(i)));
+                assertNull(map.get(key(i)));
+            }
+            assertEquals(6, map.size());
+            // the keys behind a tombstone in their probe sequence are still found
+            for (int i = 1; i < 12; i += 2) {
+                assertEquals(Long.valueOf(i), map.get(key(i)));
+            }
+            for (int i = 0; i < 12; i += 2) {
+                assertNull(map.putIfAbsent(key(i), (long) i));
+            }
+            assertEquals(12, map.size());
+        }
+        assertFalse(map.remove(key(1), 2L));
+        assertTrue(map.remove(key(1), map.get(key(1))));
+        assertNull(map.remove(key(1)));
+        // keys that never come back leave tombstones until the next rehash drops them
+        for (int i = 12; i < 100000; i++) {
+            map.put(key(i), (long) i);
+            map.remove(key(i - 1));
+        }
+        assertEquals(11, map.size());
+        assertEquals(Long.valueOf(99999), map.get(key(99999)));
+        assertNull(map.get(key(99998)));
+    }
+
+    @Test(timeout = 60000)
+    public void findsEveryKeyWhileAWriterRehashes() throws Exception {
+        MVTO.LongObjectMap<Long> map = new MVTO.LongObjectMap<>(1);
+        int count = 200000;
+        // the keys below it are in the map
+        AtomicLong inserted = new AtomicLong();
+        List<Throwable> failures = new ArrayList<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < 4; r++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    for (long seen = 0; seen < count; seen = inserted.get()) {
+                        for (long i = Math.max(0, seen - 1000); i < seen; i++) {
+                            assertEquals(Long.valueOf(i), map.get(key(i)));
+                        }
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+            readers.add(reader);
+            reader.start();
+        }
+        for (int i = 0; i < count; i++) {
+            map.put(key(i), (long) i);
+            inserted.set(i + 1);
+        }
+        for (Thread reader: readers) {
+            reader.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new AssertionError("A reader missed a key", failures.get(0));
+        }
+        assertEquals(count, map.size());
+    }
+
+    // spread over the whole range of longs, negative ones included: an odd factor is one to one
+    private static long key(long i) {
+        return i * 0xC2B2AE3D27D4EB4FL;
+    }
+}
@@ -0,0 +1,35 @@
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+ * Runs every case of MVTOTest the way tatest does: in a JVM of its own, since the cases share
+ * the keys of the static MVTO, failing unless it exits with 0.
+ */
+@RunWith(Parameterized.class)
+public class MVTOCasesTest {
+    private final int number;
+
+    public MVTOCasesTest(int number) {
+        this.number = number;
+    }
+
+    @Parameterized.Parameters(name = "MVTOTest {0}")
+    public static List<Object[]> cases() {
+        List<Object[]> cases = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            cases.add(new Object[] {i});
+        }
+        for (int i = 1001; i <= 1015; i++) {
+            cases.add(new Object[] {i});
+        }
+        return cases;
+    }
+
+    @Test(timeout = 120000)
+    public void exitsWithZero() throws Exception {
+        ChildJvm.run(MVTOTest.class, Integer.toString(number));
+    }
+}
@@ -1,5 +1,14 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.management.ObjectName;
 
 public class MVTOTest {
 	// This file contains some test examples. Create more tests of your own to debug your system. 
@@ -23,6 +32,20 @@ public class MVTOTest {
 				case 4: test4(); break;
 				case 5: test5(); break;
                 case 1001: customtest1(); break;
+                case 1002: customtest2(); break;
+                case 1003: customtest3(); break;
+                case 1004: customtest4(); break;
+                case 1005: customtest5(); break;
+                case 1006: customtest6(); break;
+                case 1007: customtest7(); break;
+                case 1008: customtest8(); break;
+                case 1009: customtest9(); break;
+                case 1010: customtest10(); break;
+                case 1011: customtest11(); break;
+                case 1012: customtest12(); break;
+                case 1013: customtest13(); break;
+                case 1014: customtest14(); break;
+                case 1015: customtest15(); break;
 			}
 	}
 
@@ -55,6 +78,749 @@ public class MVTOTest {
 		executeSchedule(schedule, expectedResults, maxLen);
 	}
 
+	private static void customtest2() {
+		log.println("----------- Custom Test 2 -----------");
+		/* A chain of readers, each one waiting for the commit of the previous one:
+		 T0: I(1) C
+		 T1:        R(1) W(1)                       C
+		 T2:                  R(1) W(1)       C
+		 ...
+		 TN:                            ...  C
+		 Committing T1 has to commit all the others without running out of stack.
+		*/
+		final int chain = 20000;
+		run(() -> {
+			int t0 = MVTO.begin_transaction();
+			MVTO.insert(t0, 1, 0);
+			MVTO.commit(t0);
+			int[] xacts = new int[chain];
+			for (int i = 0; i < chain; i++) {
+				xacts[i] = MVTO.begin_transaction();
+				int read = MVTO.read(xacts[i], 1);
+				if (read != i) {
+					throw new WrongResultException(i + 2, 2 * i + 3, R(1), read, i);
+				}
+				MVTO.write(xacts[i], 1, i + 1);
+			}
+			List<CompletableFuture<Void>> commits = new ArrayList<>();
+			for (int i = chain - 1; i >= 0; i--) {
+				commits.add(MVTO.commitAsync(xacts[i]));
+				if (i > 0 && commits.get(commits.size() - 1).isDone()) {
+					throw new RuntimeException("T" + (i + 1) + " committed before T" + i);
+				}
+			}
+			for (CompletableFuture<Void> commit: commits) {
+				commit.get(10, TimeUnit.SECONDS);
+			}
+		});
+	}
+
+	private static void customtest3() {
+		log.println("----------- Custom Test 3 -----------");
+		/* A read-only transaction reads the snapshot older than every active writer:
+		 T1: I(1) C
+		 T2:        W(1)                 C
+		 T3:              RO R(1)     R(1)     R(1) C
+		 T4:                      W(1)     C
+		 T3 reads the value inserted by T1 every time, and neither T2 nor T4 aborts.
+		*/
+		run(() -> {
+			int t1 = MVTO.begin_transaction();
+			MVTO.insert(t1, 1, getValue(0));
+			MVTO.commit(t1);
+			int t2 = MVTO.begin_transaction();
+			MVTO.write(t2, 1, getValue(2));
+			int t3 = MVTO.begin_read_only_transaction();
+			int t4 = MVTO.begin_transaction();
+			expectRead(t3, 1, 0);
+			MVTO.write(t4, 1, getValue(5));
+			expectRead(t3, 1, 0);
+			CompletableFuture<Void> c2 = MVTO.commitAsync(t2);
+			CompletableFuture<Void> c4 = MVTO.commitAsync(t4);
+			expectRead(t3, 1, 0);
+			MVTO.commitAsync(t3).get(10, TimeUnit.SECONDS);
+			c2.get(10, TimeUnit.SECONDS);
+			c4.get(10, TimeUnit.SECONDS);
+		});
+	}
+
+	private static void customtest4() {
+		log.println("----------- Custom Test 4 -----------");
+		/* Aborts are counted by cause:
+		 T1: I(1) C
+		 T2:        W(1)                RB
+		 T3:             R(1) I(2)
+		 T4:                       R(2)
+		 T5:                                   W(1)
+		 T6:                              R(1)
+		 T7:                                        I(1)
+		 Rolling back T2 cascades to T3 and then T4, two levels deep. T5 writes after the
+		 younger T6 read, and T7 inserts an existing key.
+		*/
+		run(() -> {
+			MVTO.Metrics metrics = MVTO.getMetrics();
+			int t1 = MVTO.begin_transaction();
+			MVTO.insert(t1, 1, getValue(0));
+			MVTO.commit(t1);
+			int t2 = MVTO.begin_transaction();
+			MVTO.write(t2, 1, getValue(2));
+			int t3 = MVTO.begin_transaction();
+			MVTO.read(t3, 1);
+			MVTO.insert(t3, 2, getValue(4));
+			int t4 = MVTO.begin_transaction();
+			MVTO.read(t4, 2);
+			MVTO.rollback(t2);
+			int t5 = MVTO.begin_transaction();
+			int t6 = MVTO.begin_transaction();
+			MVTO.read(t6, 1);
+			MVTO.write(t5, 1, getValue(9));
+			int t7 = MVTO.begin_transaction();
+			// the duplicate key rolls T7 back
+			expectRefused("T7 inserted an existing key", () -> MVTO.insert(t7, 1, getValue(10)));
+			expectCount("user aborts", 1, metrics.getAborts(MVTO.AbortCause.USER));
+			expectCount("cascading aborts", 2, metrics.getAborts(MVTO.AbortCause.CASCADE));
+			expectCount("rts violations", 1, metrics.getAborts(MVTO.AbortCause.RTS_VIOLATION));
+			expectCount("duplicate keys", 1, metrics.getAborts(MVTO.AbortCause.DUPLICATE_KEY));
+			expectCount("cascades two levels deep", 1, metrics.cascadeDepth.getBuckets()[2]);
+			expectCount("commits", 1, metrics.getCommits());
+			MVTO.registerMetricsMBean();
+			Object jmxAborts = ManagementFactory.getPlatformMBeanServer()
+					.getAttribute(new ObjectName(MVTO.Metrics.OBJECT_NAME), "AbortsCascade");
+			expectCount("cascading aborts over JMX", 2, (Long) jmxAborts);
+		});
+	}
+
+	private static void customtest5() {
+		log.println("----------- Custom Test 5 -----------");
+		/* A traced schedule decodes to the lines the operations used to log:
+		 T1: I(1) C
+		 T2:        R(1) W(1) RB
+		*/
+		run(() -> {
+			MVTO.startTracing(16);
+			int t1 = MVTO.begin_transaction();
+			MVTO.insert(t1, 1, getValue(0));
+			MVTO.commit(t1);
+			int t2 = MVTO.begin_transaction();
+			MVTO.read(t2, 1);
+			MVTO.write(t2, 1, getValue(3));
+			MVTO.rollback(t2);
+			MVTO.stopTracing();
+			MVTO.begin_transaction();
+			ByteArrayOutputStream dump = new ByteArrayOutputStream();
+			MVTO.dumpTrace(dump);
+			ByteArrayOutputStream text = new ByteArrayOutputStream();
+			MVTO.Trace.decode(new ByteArrayInputStream(dump.toByteArray()), new PrintStream(text, true));
+			String[] expected = {
+				"Begin transaction " + t1,
+				"Insert issued for " + t1 + " => {1," + getValue(0) + "}",
+				"Commit issued for " + t1,
+				"Begin transaction " + t2,
+				"Read issued for " + t2 + " => {1," + getValue(0) + "}",
+				"Write issued for " + t2 + " => {1," + getValue(3) + "}",
+				"Rollback " + t2
+			};
+			String[] lines = text.toString().split("\\r?\\n");
+			if (lines.length != expected.length) {
+				throw new RuntimeException("Expected " + expected.length + " events but got:\n" + text);
+			}
+			for (int i = 0; i < expected.length; i++) {
+				if (!lines[i].endsWith(" " + expected[i])) {
+					throw new RuntimeException("Expected event " + expected[i] + " but got " + lines[i]);
+				}
+			}
+			log.print(text);
+		});
+	}
+
+	private static void customtest6() {
+		log.println("----------- Custom Test 6 -----------");
+		/* Batches apply as a whole or roll back as a whole:
+		 T1: I(3,1,2) C
+		 T2:              W(1,2)
+		 T3:          R(2)
+		 T4:                      R(3,1,2)
+		 T5:                               I(3,0)
+		 T6:                                      R(0)
+		 T2 writes key 1, then is refused key 2, which the younger T3 read: its write of key 1 is
+		 undone. T5 inserts key 0, then finds key 3: key 0 is gone again.
+		*/
+		run(() -> {
+			int t1 = MVTO.begin_transaction();
+			MVTO.insertMany(t1, new int[] {3, 1, 2}, new int[] {getValue(3), getValue(1), getValue(2)});
+			MVTO.commit(t1);
+			int t2 = MVTO.begin_transaction();
+			int t3 = MVTO.begin_transaction();
+			MVTO.readMany(t3, new int[] {2});
+			// refused, T2 is rolled back
+			expectRefused("T2 wrote a key read by a younger transaction",
+					() -> MVTO.writeMany(t2, new int[] {1, 2}, new int[] {getValue(4), getValue(4)}));
+			int t4 = MVTO.begin_transaction();
+			int[] read = MVTO.readMany(t4, new int[] {3, 1, 2});
+			if (read[0] != getValue(3) || read[1] != getValue(1) || read[2] != getValue(2)) {
+				throw new RuntimeException("T4 read " + Arrays.toString(read));
+			}
+			int t5 = MVTO.begin_transaction();
+			// the duplicate key rolls T5 back
+			expectRefused("T5 inserted an existing key",
+					() -> MVTO.insertMany(t5, new int[] {3, 0}, new int[] {getValue(5), getValue(5)}));
+			int t6 = MVTO.begin_transaction();
+			// no version of key 0 is left
+			expectRefused("T6 read a key whose insert was rolled back", () -> MVTO.read(t6, 0));
+		});
+	}
+
+	private static void customtest7() {
+		log.println("----------- Custom Test 7 -----------");
+		/* Scans see the versions at their timestamp and keep older transactions out of the range:
+		 T1: I(1,5,9) C
+		 T2:                      I(3)
+		 T3:        S(2..8)             S(2..8) C
+		 T4:                I(4)                  C
+		 T5:                                                I(50)
+		 T6:                                      S(8..100)
+		 T7:                                                      S(0..100)
+		 T2 is older than T3, so its insert into the range T3 scanned is refused. T4 is younger:
+		 its insert goes through, and T3 does not see it. T5 comes too late for the range above
+		 the largest key, which the younger T6 scanned. The read-only T7 sees what committed.
+		*/
+		run(() -> {
+			int t1 = MVTO.begin_transaction();
+			MVTO.insertMany(t1, new int[] {1, 5, 9}, new int[] {getValue(1), getValue(5), getValue(9)});
+			MVTO.commit(t1);
+			int t2 = MVTO.begin_transaction();
+			int t3 = MVTO.begin_transaction();
+			expectScan(MVTO.scan(t3, 2, 8), 5, getValue(5));
+			int t4 = MVTO.begin_transaction();
+			MVTO.insert(t4, 4, getValue(4));
+			// a phantom for T3, T2 is rolled back
+			expectRefused("T2 inserted into the range T3 scanned", () -> MVTO.insert(t2, 3, getValue(3)));
+			expectScan(MVTO.scan(t3, 2, 8), 5, getValue(5));
+			MVTO.commit(t3);
+			MVTO.commit(t4);
+			int t5 = MVTO.begin_transaction();
+			int t6 = MVTO.begin_transaction();
+			expectScan(MVTO.scan(t6, 8, 100), 9, getValue(9));
+			// a phantom for T6, T5 is rolled back
+			expectRefused("T5 inserted above the largest key after T6 scanned there", () -> MVTO.insert(t5, 50, getValue(50)));
+			int t7 = MVTO.begin_read_only_transaction();
+			expectScan(MVTO.scan(t7, 0, 100), 1, getValue(1), 4, getValue(4), 5, getValue(5), 9, getValue(9));
+		});
+	}
+
+	private static void customtest8() {
+		log.println("----------- Custom Test 8 -----------");
+		/* Increments commute, so the older of two counting transactions does not abort:
+		 T1: I(1,0) C
+		 T2:          INC(1,+1)                   C
+		 T3:                    INC(1,+10) R(1)      C
+		 T4:                                           R(1) CAS(1,11=>5) CAS(1,11=>7) C
+		 T3 reads its own increment on top of T2's and waits for T2. T4 sees both, so its
+		 first compareAndSet fails and the second one writes.
+		*/
+		run(() -> {
+			int t1 = MVTO.begin_transaction();
+			MVTO.insert(t1, 1, 0);
+			MVTO.commit(t1);
+			int t2 = MVTO.begin_transaction();
+			int t3 = MVTO.begin_transaction();
+			MVTO.increment(t3, 1, 10);
+			MVTO.increment(t2, 1, 1);
+			expectCount("as the value T3 reads", 11, MVTO.read(t3, 1));
+			CompletableFuture<Void> commit3 = MVTO.commitAsync(t3);
+			if (commit3.isDone()) {
+				throw new RuntimeException("T3 committed before T2, whose increment it read");
+			}
+			MVTO.commit(t2);
+			commit3.get(10, TimeUnit.SECONDS);
+			int t4 = MVTO.begin_transaction();
+			expectCount("as the value T4 reads", 11, MVTO.read(t4, 1));
+			if (MVTO.compareAndSet(t4, 1, 5, 0)) {
+				throw new RuntimeException("compareAndSet replaced 11 expecting 5");
+			}
+			if (!MVTO.compareAndSet(t4, 1, 11, 7)) {
+				throw new RuntimeException("compareAndSet did not replace 11 expecting 11");
+			}
+			MVTO.commit(t4);
+			int t5 = MVTO.begin_read_only_transaction();
+			expectCount("as the committed value", 7, MVTO.read(t5, 1));
+			MVTO.commit(t5);
+		});
+	}
+
+	private static void customtest9() {
+		log.println("----------- Custom Test 9 -----------");
+		/* Transactions spanning the two partitions of a PartitionedMVTO, with key a in the first
+		   partition and key b in the second:
+		 T1: I(a) I(b) C
+		 T2:              W(a) W(b)                      RB
+		 T3:                        RO R(a) R(b) C
+		 T4:                                        R(b)
+		 T5:                                                 RO R(a) R(b) C
+		 T3 sees neither write of T2. T4, of the second partition only, reads b from T2, so T2
+		 rolling back from the first partition rolls T4 back as well.
+		*/
+		run(() -> {
+			MVTO.PartitionedMVTO store = new MVTO.PartitionedMVTO(2);
+			int a = 0;
+			while (store.partitionOf(a) != 0) {
+				a++;
+			}
+			int b = 0;
+			while (store.partitionOf(b) != 1) {
+				b++;
+			}
+			long t1 = store.beginTransaction(0);
+			store.insert(t1, a, getValue(1));
+			store.insert(t1, b, getValue(2));
+			store.commit(t1);
+			long t2 = store.beginTransaction(0);
+			store.write(t2, a, getValue(3));
+			store.write(t2, b, getValue(4));
+			long t3 = store.beginReadOnlyTransaction();
+			expectCount("as the value of a T3 reads", getValue(1), store.read(t3, a));
+			expectCount("as the value of b T3 reads", getValue(2), store.read(t3, b));
+			store.commit(t3);
+			long t4 = store.beginTransaction(1);
+			expectCount("as the value of b T4 reads", getValue(4), store.read(t4, b));
+			CompletableFuture<Void> commit4 = store.commitAsync(t4);
+			if (commit4.isDone()) {
+				throw new RuntimeException("T4 committed before T2, whose write it read");
+			}
+			store.rollback(t2);
+			if (!commit4.isCompletedExceptionally()) {
+				throw new RuntimeException("T4 was not rolled back with T2");
+			}
+			long t5 = store.beginReadOnlyTransaction();
+			expectScan(store.scan(t5, Integer.MIN_VALUE, Integer.MAX_VALUE), a, getValue(1), b, getValue(2));
+			store.commit(t5);
+		});
+	}
+
+	private static void customtest10() {
+		log.println("----------- Custom Test 10 -----------");
+		/* Byte values next to int ones:
+		 T1: I(1,"abc") I(2,5) C
+		 T2:                     W(1,"hello")                        C
+		 T3:                                  RO R(1) R(2)  R(1) C
+		 T4:                                                           R(1) INC(1,+1) C
+		 T3 reads the bytes T1 inserted as a read-only view, and key 2 as the four bytes of 5;
+		 an int read of key 1 fails. T4 reads T2's bytes and cannot increment them.
+		*/
+		run(() -> {
+			long t1 = MVTO.beginTransaction();
+			MVTO.insertBytes(t1, 1, bytes("abc"));
+			MVTO.insert(t1, 2, 5);
+			MVTO.commit(t1);
+			long t2 = MVTO.beginTransaction();
+			MVTO.writeBytes(t2, 1, bytes("hello"));
+			long t3 = MVTO.beginReadOnlyTransaction();
+			ByteBuffer read = MVTO.readBytes(t3, 1);
+			if (!read.isReadOnly()) {
+				throw new RuntimeException("readBytes returned a buffer that can be written to");
+			}
+			expectBytes("as the value of key 1 T3 reads", bytes("abc"), read);
+			expectBytes("as the value of key 2 T3 reads", ByteBuffer.allocate(4).putInt(0, 5), MVTO.readBytes(t3, 2));
+			expectRefused("An int read of key 1 returned a value", () -> MVTO.read(t3, 1));
+			MVTO.commit(t3);
+			MVTO.commit(t2);
+			long t4 = MVTO.beginTransaction();
+			expectBytes("as the value of key 1 T4 reads", bytes("hello"), MVTO.readBytes(t4, 1));
+			expectRefused("An increment of key 1 went through", () -> MVTO.increment(t4, 1, 1));
+			MVTO.commit(t4);
+		});
+	}
+
+	private static void customtest11() {
+		log.println("----------- Custom Test 11 -----------");
+		/* The garbage collector keeps what the oldest active transaction reads:
+		 T1: I(1) C
+		 T2:        RO                    R(1) GC R(1) C
+		 T3:           W(1) C
+		 T4:                  W(1) C
+		 T5:                         W(1) C
+		 T6:                                             GC R(1) C
+		 While T2 is active the low watermark stays at its snapshot, so T1's version is kept
+		 with the three newer ones. Once T2 commits, the younger T6 moves the watermark past
+		 T5 and the three older versions are reclaimed.
+		*/
+		run(() -> {
+			long t1 = MVTO.beginTransaction();
+			MVTO.insert(t1, 1, getValue(0));
+			MVTO.commit(t1);
+			long t2 = MVTO.beginReadOnlyTransaction();
+			long t5 = 0;
+			for (int step = 3; step <= 5; step++) {
+				t5 = MVTO.beginTransaction();
+				MVTO.write(t5, 1, getValue(step));
+				MVTO.commit(t5);
+			}
+			expectCount("as the value T2 reads", getValue(0), MVTO.read(t2, 1));
+			expectCount("versions reclaimed under T2", 0, MVTO.collectGarbage());
+			if (MVTO.getLowWatermark() > MVTO.getSnapshotTimestamp(t2)) {
+				throw new RuntimeException("The low watermark " + MVTO.getLowWatermark() + " passed the snapshot of T2");
+			}
+			expectCount("as the value T2 reads after a GC", getValue(0), MVTO.read(t2, 1));
+			MVTO.commit(t2);
+			long t6 = MVTO.beginTransaction();
+			expectCount("versions reclaimed under T6", 3, MVTO.collectGarbage());
+			expectCount("versions reclaimed in all", 3, MVTO.getReclaimedVersionCount());
+			if (MVTO.getLowWatermark() < t5) {
+				throw new RuntimeException("The low watermark " + MVTO.getLowWatermark() + " stayed below T5");
+			}
+			expectCount("as the value T6 reads", getValue(5), MVTO.read(t6, 1));
+			MVTO.commit(t6);
+		});
+	}
+
+	private static void customtest12() {
+		log.println("----------- Custom Test 12 -----------");
+		/* Version chains kept off the heap read like the ones on it:
+		 T1: I(1) I(2,"abc") C
+		 T2:                   W(1) C
+		 T3:                          RO                            R(1) R(2) C
+		 T4:                             W(1) C
+		 T5:                                    INC(1,+10) W(2,"hello") C
+		 T6:                                                                   RO R(1) R(2) C GC
+		 T3 reads T2's version and the bytes T1 inserted, T6 the increment on top of T4's value
+		 and T5's bytes, before and after a GC that reclaims what T3 needed.
+		*/
+		run(() -> {
+			MVTO.setOffHeapStorage(true);
+			long t1 = MVTO.beginTransaction();
+			MVTO.insert(t1, 1, getValue(0));
+			MVTO.insertBytes(t1, 2, bytes("abc"));
+			MVTO.commit(t1);
+			if (MVTO.getOffHeapBytes() <= 0) {
+				throw new RuntimeException("No direct memory was reserved for the versions");
+			}
+			long t2 = MVTO.beginTransaction();
+			MVTO.write(t2, 1, getValue(2));
+			MVTO.commit(t2);
+			long t3 = MVTO.beginReadOnlyTransaction();
+			long t4 = MVTO.beginTransaction();
+			MVTO.write(t4, 1, getValue(4));
+			MVTO.commit(t4);
+			long t5 = MVTO.beginTransaction();
+			MVTO.increment(t5, 1, 10);
+			MVTO.writeBytes(t5, 2, bytes("hello"));
+			MVTO.commit(t5);
+			expectCount("as the value of key 1 T3 reads", getValue(2), MVTO.read(t3, 1));
+			expectBytes("as the value of key 2 T3 reads", bytes("abc"), MVTO.readBytes(t3, 2));
+			MVTO.commit(t3);
+			long t6 = MVTO.beginReadOnlyTransaction();
+			expectCount("as the value of key 1 T6 reads", getValue(4) + 10, MVTO.read(t6, 1));
+			expectBytes("as the value of key 2 T6 reads", bytes("hello"), MVTO.readBytes(t6, 2));
+			MVTO.commit(t6);
+			if (MVTO.collectGarbage() < 3) {
+				throw new RuntimeException("The GC left versions no one reads");
+			}
+			long t7 = MVTO.beginReadOnlyTransaction();
+			expectCount("as the value of key 1 after a GC", getValue(4) + 10, MVTO.read(t7, 1));
+			expectBytes("as the value of key 2 after a GC", bytes("hello"), MVTO.readBytes(t7, 2));
+			MVTO.commit(t7);
+			MVTO.setOffHeapStorage(false);
+		});
+	}
+
+	private static void customtest13() {
+		log.println("----------- Custom Test 13 -----------");
+		/* Timestamps past Integer.MAX_VALUE, after a recovery left the clock at it:
+		 T1:      R(1) W(1) C
+		 T2:                  R(1)             C
+		 T3:                       R(1) W(1)
+		 T1..T3 only exist as longs: an int begin is rolled back and refused instead. T3 reads
+		 after the younger T2 did, so its write rolls it back, as the read timestamps compare as
+		 longs. Then threads begin transactions with blocks of timestamps while the watermark
+		 moves: each one gets a unique timestamp above the watermark, in order per thread.
+		*/
+		final int threads = 4;
+		final int begins = 5000;
+		run(() -> {
+			MVTO.restore(1, getValue(0), 1, Integer.MAX_VALUE);
+			MVTO.Metrics metrics = MVTO.getMetrics();
+			long userAborts = metrics.getAborts(MVTO.AbortCause.USER);
+			try {
+				MVTO.begin_transaction();
+				throw new RuntimeException("An int begin returned a timestamp past Integer.MAX_VALUE");
+			} catch (IllegalStateException expected) {
+				expectCount("user aborts of the int begin", userAborts + 1, metrics.getAborts(MVTO.AbortCause.USER));
+			}
+			long t1 = MVTO.beginTransaction();
+			if (t1 <= Integer.MAX_VALUE) {
+				throw new RuntimeException("T1 began at " + t1 + ", before the recovered clock");
+			}
+			expectCount("as the value T1 reads", getValue(0), MVTO.read(t1, 1));
+			MVTO.write(t1, 1, getValue(2));
+			MVTO.commit(t1);
+			long t3 = MVTO.beginTransaction();
+			long t2 = MVTO.beginTransaction();
+			expectCount("as the value T2 reads", getValue(2), MVTO.read(t2, 1));
+			expectCount("as the value T3 reads", getValue(2), MVTO.read(t3, 1));
+			MVTO.write(t3, 1, getValue(6));
+			if (MVTO.isActive(t3)) {
+				throw new RuntimeException("T3 overwrote a version T2 read");
+			}
+			MVTO.commit(t2);
+
+			long[][] timestamps = new long[threads][begins];
+			List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+			List<Thread> beginners = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				long[] own = timestamps[t];
+				Thread thread = new Thread(() -> {
+					try {
+						for (int i = 0; i < begins; i++) {
+							own[i] = MVTO.beginTransaction();
+							if (MVTO.getLowWatermark() > own[i]) {
+								throw new RuntimeException("Began " + own[i] + " below the watermark " + MVTO.getLowWatermark());
+							}
+							MVTO.commit(own[i]);
+						}
+					} catch (Throwable e) {
+						failures.add(e);
+					}
+				});
+				beginners.add(thread);
+				thread.start();
+			}
+			while (beginners.stream().anyMatch(Thread::isAlive)) {
+				MVTO.collectGarbage();
+			}
+			for (Thread thread: beginners) {
+				thread.join();
+			}
+			if (!failures.isEmpty()) {
+				throw new RuntimeException("A thread failed to begin", failures.get(0));
+			}
+			Set<Long> unique = new HashSet<>();
+			for (long[] own: timestamps) {
+				for (int i = 0; i < begins; i++) {
+					if (i > 0 && own[i] <= own[i - 1]) {
+						throw new RuntimeException("A thread began " + own[i] + " after " + own[i - 1]);
+					}
+					if (own[i] <= t2 || !unique.add(own[i])) {
+						throw new RuntimeException("Timestamp " + own[i] + " was handed out before");
+					}
+				}
+			}
+		});
+	}
+
+	private static void customtest14() {
+		log.println("----------- Custom Test 14 -----------");
+		/* Threads increment shared keys, each one with R(k) W(k, value + 1) C, at the same time:
+		 T0:  I(1..4, 0) C
+		 Ti:             R(k) W(k)    C        (for every thread, again and again)
+		 Tj:                  R(k) W(k)    C
+		 A transaction that is rolled back, refused its write or cascaded, is retried. Once every
+		 thread committed its increments, each key holds the number of increments committed on
+		 it: none got lost between the monitors of the keys.
+		 TR:                                      RO R(1..4) C
+		*/
+		final int threads = 8;
+		final int keys = 4;
+		final int increments = 300;
+		run(() -> {
+			long t0 = MVTO.beginTransaction();
+			for (int key = 1; key <= keys; key++) {
+				MVTO.insert(t0, key, 0);
+			}
+			MVTO.commit(t0);
+			int[][] committed = new int[threads][keys + 1];
+			List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+			List<Thread> incrementers = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				int[] own = committed[t];
+				Random random = new Random(t);
+				Thread thread = new Thread(() -> {
+					try {
+						for (int i = 0; i < increments; ) {
+							int key = 1 + random.nextInt(keys);
+							long xact = MVTO.beginTransaction();
+							try {
+								MVTO.write(xact, key, MVTO.read(xact, key) + 1);
+								MVTO.commitAsync(xact).get(10, TimeUnit.SECONDS);
+							} catch (ExecutionException rolledBack) {
+								continue;
+							} catch (Exception rolledBack) {
+								if (MVTO.isActive(xact)) {
+									throw rolledBack;
+								}
+								continue;
+							}
+							own[key]++;
+							i++;
+						}
+					} catch (Throwable e) {
+						failures.add(e);
+					}
+				});
+				incrementers.add(thread);
+				thread.start();
+			}
+			for (Thread thread: incrementers) {
+				thread.join();
+			}
+			if (!failures.isEmpty()) {
+				throw new RuntimeException("An incrementing thread failed", failures.get(0));
+			}
+			// a read-write transaction of this thread could still have a timestamp of its block
+			long reader = MVTO.beginReadOnlyTransaction();
+			for (int key = 1; key <= keys; key++) {
+				int expected = 0;
+				for (int[] own: committed) {
+					expected += own[key];
+				}
+				expectCount("increments of key " + key, expected, MVTO.read(reader, key));
+			}
+			MVTO.commit(reader);
+		});
+	}
+
+	private static void customtest15() {
+		log.println("----------- Custom Test 15 -----------");
+		/* Commits wait only for the uncommitted versions they read, and rollbacks cascade along
+		   the same dependencies, level by level:
+		 T1: I(0..N+1) C
+		 T2:             R(N+1) C
+		 T3:                      W(1)                                      RB
+		 T4:                           R(1) W(2)                      C
+		 ...
+		 TN+3:                                  R(N) W(N+1)  C
+		 T2 read a committed version, so its commit is immediate. TN+3 down to T4 each wait for
+		 the one before them, until T3 rolls back: the cascade goes N levels deep without
+		 running out of stack, and every key is back at what T1 inserted.
+		 TA:  W(0)                 C
+		 TB:       R(0) W(1)   C
+		 TC:                 R(0) R(1)   C
+		 TC waits for both TA and TB, TB for TA: committing TA commits all three.
+		*/
+		final int chain = 20000;
+		run(() -> {
+			MVTO.Metrics metrics = MVTO.getMetrics();
+			long t1 = MVTO.beginTransaction();
+			for (int key = 0; key <= chain + 1; key++) {
+				MVTO.insert(t1, key, key);
+			}
+			MVTO.commit(t1);
+			long t2 = MVTO.beginTransaction();
+			expectCount("as the value T2 reads", chain + 1, MVTO.read(t2, chain + 1));
+			if (!MVTO.commitAsync(t2).isDone()) {
+				throw new RuntimeException("T2 waits although it only read a committed version");
+			}
+
+			long t3 = MVTO.beginTransaction();
+			MVTO.write(t3, 1, -1);
+			long[] xacts = new long[chain];
+			for (int i = 0; i < chain; i++) {
+				xacts[i] = MVTO.beginTransaction();
+				MVTO.write(xacts[i], i + 2, MVTO.read(xacts[i], i + 1) - 1);
+			}
+			List<CompletableFuture<Void>> commits = new ArrayList<>();
+			for (int i = chain - 1; i >= 0; i--) {
+				commits.add(MVTO.commitAsync(xacts[i]));
+			}
+			for (CompletableFuture<Void> commit: commits) {
+				if (commit.isDone()) {
+					throw new RuntimeException("A transaction committed before the one it read from");
+				}
+			}
+			long cascades = metrics.getAborts(MVTO.AbortCause.CASCADE);
+			MVTO.rollback(t3);
+			for (CompletableFuture<Void> commit: commits) {
+				if (!commit.isCompletedExceptionally()) {
+					throw new RuntimeException("A transaction that read a rolled back version committed");
+				}
+			}
+			expectCount("cascading aborts", cascades + chain, metrics.getAborts(MVTO.AbortCause.CASCADE));
+			// 2^14 <= chain < 2^15
+			expectCount("cascades as deep as the chain", 1, metrics.cascadeDepth.getBuckets()[15]);
+			long reader = MVTO.beginReadOnlyTransaction();
+			for (int key = 0; key <= chain + 1; key++) {
+				expectCount("as the value of key " + key, key, MVTO.read(reader, key));
+			}
+			MVTO.commit(reader);
+
+			long ta = MVTO.beginTransaction();
+			MVTO.write(ta, 0, 10);
+			long tb = MVTO.beginTransaction();
+			MVTO.write(tb, 1, MVTO.read(tb, 0) + 1);
+			long tc = MVTO.beginTransaction();
+			expectCount("as the sum TC reads", 21, MVTO.read(tc, 0) + MVTO.read(tc, 1));
+			CompletableFuture<Void> commitB = MVTO.commitAsync(tb);
+			CompletableFuture<Void> commitC = MVTO.commitAsync(tc);
+			if (commitB.isDone() || commitC.isDone()) {
+				throw new RuntimeException("TB or TC committed before TA");
+			}
+			MVTO.commit(ta);
+			commitB.get(10, TimeUnit.SECONDS);
+			commitC.get(10, TimeUnit.SECONDS);
+		});
+	}
+
+	// the body of a test, which may throw the checked exceptions of MVTO
+	private interface Steps {
+		void run() throws Exception;
+	}
+
+	// runs steps, rethrowing what they throw unchecked so that the test fails
+	private static void run(Steps steps) {
+		try {
+			steps.run();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// runs steps, which MVTO has to refuse with a checked exception, and fails with otherwise if it does not
+	private static void expectRefused(String otherwise, Steps steps) {
+		try {
+			steps.run();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception expected) {
+			return;
+		}
+		throw new RuntimeException(otherwise);
+	}
+
+	private static ByteBuffer bytes(String s) {
+		return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void expectBytes(String what, ByteBuffer expected, ByteBuffer actual) {
+		if (!expected.equals(actual)) {
+			throw new RuntimeException("Expected " + expected.remaining() + " bytes " + what + " but got other " + actual.remaining());
+		}
+	}
+
+	// keysAndValues alternates the expected keys, in order, and their values
+	private static void expectScan(SortedMap<Integer, Integer> scanned, int... keysAndValues) {
+		SortedMap<Integer, Integer> expected = new TreeMap<>();
+		for (int i = 0; i < keysAndValues.length; i += 2) {
+			expected.put(keysAndValues[i], keysAndValues[i + 1]);
+		}
+		if (!expected.equals(scanned)) {
+			throw new RuntimeException("Expected the scan to return " + expected + " but got " + scanned);
+		}
+	}
+
+	private static void expectCount(String what, long expected, long actual) {
+		if (expected != actual) {
+			throw new RuntimeException("Expected " + expected + " " + what + " but got " + actual);
+		}
+	}
+
+	private static void expectRead(int xact, int key, int writtenAtStep) throws Exception {
+		int read = MVTO.read(xact, key);
+		if (read != getValue(writtenAtStep)) {
+			throw new WrongResultException(xact, writtenAtStep, R(key), read, getValue(writtenAtStep));
+		}
+	}
+
 	private static void test1() {
 		log.println("----------- Test 1 -----------");
 		/* Example schedule:
@@ -0,0 +1,95 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Round trips through the codecs nodes encode their messages with.
+ */
+public class MessageCodecTest {
+    private final BloomJoin.MessageCodec codec = new BloomJoin.BinaryCodec();
+
+    @Test
+    public void roundTripsTuplesWithExtremeValues() throws Exception {
+        int[] values = {0, 1, -1, 63, 64, -64, -65, 127, 128, 8191, 8192, Short.MAX_VALUE, Short.MIN_VALUE,
+                Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE - 1, Integer.MIN_VALUE + 1};
+        List<BloomJoin.S> tuples = new ArrayList<>();
+        // every value next to every other, so that the deltas of b overflow both ways
+        for (int b: values) {
+            for (int c: values) {
+                tuples.add(new BloomJoin.S(b, c));
+            }
+        }
+        assertTuples(tuples, roundTrip(tuples));
+    }
+
+    @Test
+    public void roundTripsRandomTuples() throws Exception {
+        Random random = new Random(1);
+        List<BloomJoin.S> tuples = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            tuples.add(new BloomJoin.S(random.nextInt(), random.nextInt(1000) - 500));
+        }
+        assertTuples(tuples, roundTrip(tuples));
+        assertTuples(new ArrayList<>(), roundTrip(new ArrayList<BloomJoin.S>()));
+    }
+
+    @Test
+    public void encodesSortedKeysInAFewBytesEach() throws Exception {
+        List<BloomJoin.S> tuples = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            tuples.add(new BloomJoin.S(1000000 + i * 3, i % 50));
+        }
+        // the tag, a count of two bytes, the first tuple in four and the others in two
+        assertEquals(1 + 2 + 3 + 1 + 2 * 999, codec.encode(tuples).length);
+    }
+
+    @Test
+    public void roundTripsBitSets() throws Exception {
+        BitSet bits = new BitSet();
+        bits.set(0);
+        bits.set(63);
+        bits.set(64);
+        bits.set(100000);
+        assertEquals(bits, codec.decode(codec.encode(bits)));
+        assertEquals(new BitSet(), codec.decode(codec.encode(new BitSet())));
+    }
+
+    @Test
+    public void roundTripsBloomFilters() throws Exception {
+        BloomJoin.BloomFilter filter = new BloomJoin.BloomFilter(1000, 0.01);
+        for (int key = 0; key < 1000; key++) {
+            filter.add(key * 7);
+        }
+        for (BloomJoin.MessageCodec each: new BloomJoin.MessageCodec[] {codec, new BloomJoin.SerializationCodec()}) {
+            BloomJoin.BloomFilter decoded = (BloomJoin.BloomFilter) each.decode(each.encode(filter));
+            assertEquals(filter.getBits(), decoded.getBits());
+            assertEquals(filter.getHashes(), decoded.getHashes());
+            assertArrayEquals(filter.getWords(), decoded.getWords());
+        }
+    }
+
+    @Test
+    public void fallsBackToSerializationForOtherMessages() throws Exception {
+        assertEquals("message", codec.decode(codec.encode("message")));
+        assertEquals(Arrays.asList(1, 2, 3), codec.decode(codec.encode(Arrays.asList(1, 2, 3))));
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<BloomJoin.S> roundTrip(List<BloomJoin.S> tuples) throws Exception {
+        return (List<BloomJoin.S>) codec.decode(codec.encode(tuples));
+    }
+
+    private static void assertTuples(List<BloomJoin.S> expected, List<BloomJoin.S> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals("b of tuple " + i, expected.get(i).getB(), actual.get(i).getB());
+            assertEquals("c of tuple " + i, expected.get(i).getC(), actual.get(i).getC());
+        }
+    }
+}
@@ -0,0 +1,117 @@
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Schedules written with Replay.Writer or converted from a Trace dump, replayed against the
+ * static MVTO; each test works on keys of its own.
+ */
+public class ReplayTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ByteArrayOutputStream report = new ByteArrayOutputStream();
+
+    @Test
+    public void replaysAWrittenSchedule() throws Exception {
+        File schedule = folder.newFile();
+        try (Replay.Writer writer = new Replay.Writer(schedule)) {
+            int loader = writer.begin();
+            for (int key = 1000; key < 1010; key++) {
+                writer.insert(loader, key, key);
+            }
+            writer.commit(loader);
+            for (int i = 0; i < 100; i++) {
+                int txn = writer.begin();
+                writer.read(txn, 1000 + i % 10, i < 10 ? 1000 + i : i - 10);
+                writer.write(txn, 1000 + i % 10, i);
+                writer.commit(txn);
+            }
+            int reader = writer.beginReadOnly();
+            writer.read(reader, 1005, 95);
+            writer.commit(reader);
+        }
+        assertTrue(report.toString(), run(schedule));
+        assertTrue(report.toString(), report.toString().contains(" 102 commits, 0 aborted commits, 0 mismatched reads"));
+    }
+
+    @Test
+    public void reportsReadsThatDifferFromTheSchedule() throws Exception {
+        File schedule = folder.newFile();
+        try (Replay.Writer writer = new Replay.Writer(schedule)) {
+            int txn = writer.begin();
+            writer.insert(txn, 1100, 1);
+            writer.read(txn, 1100, 2);
+            writer.commit(txn);
+        }
+        assertFalse(run(schedule));
+        assertTrue(report.toString(), report.toString().contains("read 1 from key 1100 instead of 2."));
+    }
+
+    @Test
+    public void waitsForTheCommitsOfTheScheduleBeforeReporting() throws Exception {
+        File schedule = folder.newFile();
+        try (Replay.Writer writer = new Replay.Writer(schedule)) {
+            int loader = writer.begin();
+            writer.insert(loader, 1200, 0);
+            writer.commit(loader);
+            // the reader commits once the writer does, which the schedule never has it do
+            int unfinished = writer.begin();
+            writer.write(unfinished, 1200, 1);
+            int reader = writer.begin();
+            writer.read(reader, 1200, 1);
+            writer.commit(reader);
+        }
+        assertFalse(run(schedule));
+        assertTrue(report.toString(), report.toString().contains(" 1 commits, 1 aborted commits"));
+        assertTrue(report.toString(), report.toString().contains(" 1 unfinished transactions"));
+    }
+
+    @Test
+    public void replaysAConvertedTrace() throws Exception {
+        // recorded on a store of its own, so that the replay inserts the keys again
+        MVTO.PartitionedMVTO store = new MVTO.PartitionedMVTO(1);
+        MVTO.startTracing(1 << 16);
+        try {
+            long loader = store.beginTransaction();
+            for (int key = 1300; key < 1320; key++) {
+                store.insert(loader, key, 0);
+            }
+            store.commitAsync(loader).get();
+            for (int i = 0; i < 200; i++) {
+                long xact = i % 5 == 0 ? store.beginReadOnlyTransaction() : store.beginTransaction();
+                int value = store.read(xact, 1300 + i % 20);
+                if (i % 5 != 0) {
+                    store.write(xact, 1300 + (i + 1) % 20, value + i);
+                }
+                if (i % 7 == 0) {
+                    store.rollback(xact);
+                } else {
+                    store.commitAsync(xact).get();
+                }
+            }
+        } finally {
+            MVTO.stopTracing();
+        }
+        File trace = folder.newFile();
+        try (OutputStream out = new FileOutputStream(trace)) {
+            MVTO.dumpTrace(out);
+        }
+        File schedule = folder.newFile();
+        Replay.convert(trace, schedule);
+        assertTrue(report.toString(), run(schedule));
+        assertTrue(report.toString(), report.toString().contains(" 0 mismatched reads, 0 failed operations"));
+    }
+
+    private boolean run(File schedule) throws Exception {
+        return Replay.run(schedule, new PrintStream(report, true));
+    }
+}
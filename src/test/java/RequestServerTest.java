@@ -0,0 +1,139 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * RequestServer on loopback, against the static MVTO; each test works on keys of its own.
+ */
+public class RequestServerTest {
+    private static final long CURRENT = RequestServer.CURRENT;
+    private static RequestServer server;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        server = new RequestServer(0);
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        server.close();
+    }
+
+    @Test(timeout = 10000)
+    public void pipelinesWholeTransactions() throws Exception {
+        try (RequestServer.Client client = new RequestServer.Client(server.getPort())) {
+            client.begin();
+            client.insert(CURRENT, 100, 1);
+            client.insert(CURRENT, 101, 2);
+            client.read(CURRENT, 100);
+            client.commit(CURRENT);
+            client.begin();
+            client.write(CURRENT, 101, 3);
+            client.read(CURRENT, 101);
+            client.commit(CURRENT);
+            RequestServer.Results results = client.sync();
+            assertEquals(9, results.size());
+            for (int i = 0; i < results.size(); i++) {
+                assertFalse(results.getError(i), results.failed(i));
+            }
+            assertTrue(results.getLong(5) > results.getLong(0));
+            assertEquals(1, results.getInt(3));
+            assertEquals(3, results.getInt(7));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void answersFailedOperationsWithTheirReason() throws Exception {
+        try (RequestServer.Client client = new RequestServer.Client(server.getPort())) {
+            client.begin();
+            client.insert(CURRENT, 200, 1);
+            client.commit(CURRENT);
+            client.begin();
+            client.read(CURRENT, 299);
+            client.read(CURRENT, 200);
+            RequestServer.Results results = client.sync();
+            assertTrue(results.failed(4));
+            assertEquals("There is no tuple with key 299", results.getError(4));
+            assertEquals(1, results.getInt(5));
+            client.rollback(CURRENT);
+            assertFalse(client.sync().failed(0));
+
+            // the younger transaction reads key 200 first, so the older one writes it too late
+            client.begin();
+            client.begin();
+            client.read(CURRENT, 200);
+            results = client.sync();
+            long older = results.getLong(0);
+            client.write(older, 200, 2);
+            client.commit(older);
+            results = client.sync();
+            assertTrue(results.failed(0));
+            assertEquals("Transaction " + older + " was rolled back writing key 200.", results.getError(0));
+            assertTrue(results.failed(1));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void answersACommitOnceTheWriterItReadFromCommits() throws Exception {
+        try (RequestServer.Client writer = new RequestServer.Client(server.getPort());
+             RequestServer.Client reader = new RequestServer.Client(server.getPort())) {
+            writer.begin();
+            writer.insert(CURRENT, 300, 1);
+            writer.commit(CURRENT);
+            writer.begin();
+            writer.write(CURRENT, 300, 2);
+            RequestServer.Results written = writer.sync();
+            assertFalse(written.failed(4));
+
+            reader.begin();
+            reader.read(CURRENT, 300);
+            reader.commit(CURRENT);
+            CompletableFuture<RequestServer.Results> read = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return reader.sync();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            Thread.sleep(300);
+            assertFalse("The reader committed before the writer it read from", read.isDone());
+
+            writer.commit(CURRENT);
+            assertFalse(writer.sync().failed(0));
+            RequestServer.Results results = read.get(5, TimeUnit.SECONDS);
+            assertEquals(2, results.getInt(1));
+            assertFalse(results.getError(2), results.failed(2));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void syncsPipelinesLargerThanTheBuffersOfBothSides() throws Exception {
+        ByteBuffer payload = ByteBuffer.allocate(64 * 1024);
+        int operations = 300;
+        try (RequestServer.Client client = new RequestServer.Client(server.getPort())) {
+            client.begin();
+            client.insertBytes(CURRENT, 400, payload);
+            for (int i = 0; i < operations; i++) {
+                payload.putInt(0, i);
+                client.writeBytes(CURRENT, 400, payload);
+                client.readBytes(CURRENT, 400);
+            }
+            client.commit(CURRENT);
+            RequestServer.Results results = client.sync();
+            assertEquals(3 + 2 * operations, results.size());
+            for (int i = 0; i < operations; i++) {
+                ByteBuffer read = results.getBytes(3 + 2 * i);
+                assertEquals(payload.capacity(), read.remaining());
+                assertEquals(i, read.getInt(0));
+            }
+            assertFalse(results.failed(results.size() - 1));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Lookups in version chains after prune removed their oldest versions, on the heap and off it.
+ */
+public class ValueTest {
+    private static final int FULL = MVTO.Value.FULL;
+    private static final int DELTA = MVTO.Value.DELTA;
+
+    @Test
+    public void findsTheVersionBeforeATimestampInAPrunedChain() {
+        for (boolean offHeap: new boolean[] {false, true}) {
+            // committed versions written at 10, 20, ... 1000
+            MVTO.Value val = MVTO.Value.create(1, 10, 10, 1, 0, offHeap);
+            for (int i = 2; i <= 100; i++) {
+                val.createNewVersion(i, 10 * i, 10 * i, 0);
+            }
+            assertEquals(49, val.prune(505));
+            assertEquals(51, val.size());
+            assertEquals(-1, val.indexBefore(0));
+            assertEquals(-1, val.indexBefore(499));
+            for (long t = 500; t <= 1100; t++) {
+                int i = val.indexBefore(t);
+                assertEquals("at " + t, Math.min(t / 10, 100) - 50, i);
+                assertEquals("at " + t, Math.min(t / 10, 100), val.content(i));
+            }
+            // timestamps past Integer.MAX_VALUE compare as longs
+            val.createNewVersion(101, 3000000000L, 3000000000L, 0);
+            assertEquals(50, val.indexBefore(2999999999L));
+            assertEquals(51, val.indexBefore(3000000000L));
+            assertEquals(51, val.indexBefore(Long.MAX_VALUE));
+            // a version not committed yet is found, but not by committedBefore
+            val.createNewVersion(102, 4000000000L, 4000000000L, 4000000000L);
+            assertEquals(52, val.indexBefore(4000000001L));
+            assertEquals(51, val.committedBefore(4000000001L));
+        }
+    }
+
+    @Test
+    public void findsTheVersionBeforeATimestampAmongDeltas() {
+        for (boolean offHeap: new boolean[] {false, true}) {
+            // 10: 100, 20: +5, 30: +7, 40: 1, 45: +1000 not committed, 50: +2
+            MVTO.Value val = MVTO.Value.create(1, 10, 10, 100, 0, offHeap);
+            val.setKind(val.createNewVersion(5, 20, 20, 0), DELTA);
+            val.setKind(val.createNewVersion(7, 30, 30, 0), DELTA);
+            val.createNewVersion(1, 40, 40, 0);
+            val.setKind(val.createNewVersion(2, 50, 50, 0), DELTA);
+            val.setKind(val.createNewVersion(1000, 45, 45, 45), DELTA);
+            assertEquals(112, val.materialize(val.indexBefore(35), true));
+
+            // the delta at 30 becomes the FULL version the older ones added up to
+            assertEquals(2, val.prune(35));
+            assertEquals(-1, val.indexBefore(25));
+            assertEquals(0, val.indexBefore(30));
+            assertEquals(FULL, val.kind(0));
+            assertEquals(112, val.materialize(val.indexBefore(39), true));
+            assertEquals(1, val.materialize(val.indexBefore(44), true));
+            assertEquals(2, val.indexBefore(47));
+            assertEquals(1001, val.materialize(val.indexBefore(47), false));
+            assertEquals(1, val.materialize(val.indexBefore(47), true));
+            assertEquals(3, val.materialize(val.indexBefore(55), true));
+            assertEquals(1003, val.materialize(val.indexBefore(55), false));
+
+            // the newest committed version at 47 is the one at 40, the delta at 45 stays
+            assertEquals(1, val.prune(47));
+            assertEquals(-1, val.indexBefore(39));
+            assertEquals(0, val.indexBefore(44));
+            assertEquals(1, val.indexBefore(45));
+            assertEquals(0, val.committedBefore(49));
+            assertEquals(3, val.materialize(val.indexBefore(Long.MAX_VALUE), true));
+        }
+    }
+}
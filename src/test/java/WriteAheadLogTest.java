@@ -0,0 +1,216 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The write-ahead log across restarts: every step runs main in a JVM of its own, which opens
+ * the log in a directory, replaying it into a fresh store, and closes it again.
+ */
+public class WriteAheadLogTest {
+    // the threads of the group step, and the commits each one makes after its insert
+    private static final int GROUP_THREADS = 8;
+    private static final int GROUP_COMMITS = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 120000)
+    public void replaysTheCommittedTransactionsAfterARestart() throws Exception {
+        File dir = folder.newFolder();
+        step("load", dir);
+        // neither the rolled back write of key 3 nor the one of key 1 are in the log
+        assertEquals("10 7 3 FOUR", step("dump", dir, "1", "2", "3", "b4"));
+        // the replay keeps the chains it restores
+        assertEquals("10 7 3 FOUR", step("dump", dir, "1", "2", "3", "b4"));
+    }
+
+    @Test(timeout = 120000)
+    public void dropsATornRecordAtTheEndOfTheLog() throws Exception {
+        File dir = folder.newFolder();
+        step("load", dir);
+        File segment = new File(dir, "wal-1.log");
+        long intact = segment.length();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            // the header of a 40 byte record and the first bytes of its payload
+            file.seek(intact);
+            file.write(new byte[] {0, 0, 0, 40, 1, 2, 3, 4, 5});
+        }
+        assertEquals("10 7 3 FOUR", step("dump", dir, "1", "2", "3", "b4"));
+        assertEquals(intact, segment.length());
+    }
+
+    @Test(timeout = 120000)
+    public void dropsARecordThatFailsItsChecksum() throws Exception {
+        File dir = folder.newFolder();
+        step("load", dir);
+        File segment = new File(dir, "wal-1.log");
+        long loaded = segment.length();
+        step("update", dir);
+        assertEquals("20", step("dump", dir, "1"));
+        long updated = segment.length();
+        assertTrue(updated > loaded);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            // the last byte of the value the update wrote
+            file.seek(updated - 1);
+            int last = file.read();
+            file.seek(updated - 1);
+            file.write(last ^ 1);
+        }
+        assertEquals("10", step("dump", dir, "1"));
+        assertEquals(loaded, segment.length());
+    }
+
+    @Test(timeout = 120000)
+    public void rollsOverAndTruncatesSegments() throws Exception {
+        File dir = folder.newFolder();
+        step("roll", dir);
+        assertFalse(new File(dir, "wal-1.log").exists());
+        assertTrue(new File(dir, "wal-2.log").exists());
+        // what the deleted segment held is gone, as a checkpoint would hold it
+        assertEquals("- 6", step("dump", dir, "5", "6"));
+        // the segment appended to is never deleted
+        step("truncate", dir);
+        assertTrue(new File(dir, "wal-2.log").exists());
+        assertEquals("- 6", step("dump", dir, "5", "6"));
+    }
+
+    @Test(timeout = 120000)
+    public void syncsConcurrentCommitsTogether() throws Exception {
+        File dir = folder.newFolder();
+        String[] counts = step("group", dir).split(" ");
+        long records = Long.parseLong(counts[0]);
+        long syncs = Long.parseLong(counts[1]);
+        assertEquals(GROUP_THREADS * (GROUP_COMMITS + 1), records);
+        assertTrue(syncs + " syncs for " + records + " records", syncs < records);
+        assertEquals(GROUP_COMMITS + " " + GROUP_COMMITS, step("dump", dir, "100", "107"));
+    }
+
+    private static String step(String name, File dir, String... keys) throws Exception {
+        String[] args = new String[keys.length + 2];
+        args[0] = name;
+        args[1] = dir.getPath();
+        System.arraycopy(keys, 0, args, 2, keys.length);
+        return ChildJvm.run(WriteAheadLogTest.class, args);
+    }
+
+    // java WriteAheadLogTest <step> <log directory> [keys, b for the bytes ones]
+    public static void main(String[] args) throws Exception {
+        WriteAheadLog log = WriteAheadLog.open(new File(args[1]));
+        String printed = "";
+        switch (args[0]) {
+            case "load": {
+                long xact = MVTO.beginTransaction();
+                MVTO.insert(xact, 1, 1);
+                MVTO.insert(xact, 2, 2);
+                MVTO.insert(xact, 3, 3);
+                MVTO.insertBytes(xact, 4, bytes("four"));
+                MVTO.commitAsync(xact).get();
+                xact = MVTO.beginTransaction();
+                MVTO.write(xact, 1, 10);
+                MVTO.increment(xact, 2, 5);
+                MVTO.writeBytes(xact, 4, bytes("FOUR"));
+                MVTO.commitAsync(xact).get();
+                xact = MVTO.beginTransaction();
+                MVTO.write(xact, 3, 99);
+                MVTO.rollback(xact);
+                break;
+            }
+            case "update": {
+                long xact = MVTO.beginTransaction();
+                MVTO.write(xact, 1, 20);
+                MVTO.commitAsync(xact).get();
+                break;
+            }
+            case "roll": {
+                long first = MVTO.beginTransaction();
+                MVTO.insert(first, 5, 5);
+                MVTO.commitAsync(first).get();
+                log.roll();
+                long second = MVTO.beginTransaction();
+                MVTO.insert(second, 6, 6);
+                MVTO.commitAsync(second).get();
+                log.truncate(first);
+                break;
+            }
+            case "truncate":
+                log.truncate(Long.MAX_VALUE);
+                break;
+            case "group": {
+                List<Thread> threads = new ArrayList<>();
+                List<Throwable> failures = new ArrayList<>();
+                for (int t = 0; t < GROUP_THREADS; t++) {
+                    int key = 100 + t;
+                    Thread thread = new Thread(() -> {
+                        try {
+                            long xact = MVTO.beginTransaction();
+                            MVTO.insert(xact, key, 0);
+                            MVTO.commitAsync(xact).get();
+                            for (int i = 1; i <= GROUP_COMMITS; i++) {
+                                xact = MVTO.beginTransaction();
+                                MVTO.write(xact, key, i);
+                                MVTO.commitAsync(xact).get();
+                            }
+                        } catch (Throwable e) {
+                            synchronized (failures) {
+                                failures.add(e);
+                            }
+                        }
+                    });
+                    threads.add(thread);
+                    thread.start();
+                }
+                for (Thread thread: threads) {
+                    thread.join();
+                }
+                if (!failures.isEmpty()) {
+                    throw new Exception("A committing thread failed", failures.get(0));
+                }
+                printed = log.getRecordCount() + " " + log.getSyncCount();
+                break;
+            }
+            case "dump": {
+                long xact = MVTO.beginReadOnlyTransaction();
+                StringBuilder values = new StringBuilder();
+                for (int i = 2; i < args.length; i++) {
+                    values.append(i > 2 ? " " : "").append(read(xact, args[i]));
+                }
+                MVTO.commit(xact);
+                printed = values.toString();
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown step " + args[0]);
+        }
+        log.close();
+        System.out.println(printed);
+    }
+
+    // the value of key in xact, - if it has none
+    static String read(long xact, String key) {
+        try {
+            if (key.startsWith("b")) {
+                ByteBuffer value = MVTO.readBytes(xact, Integer.parseInt(key.substring(1)));
+                byte[] bytes = new byte[value.remaining()];
+                value.get(bytes);
+                return new String(bytes, StandardCharsets.US_ASCII);
+            }
+            return Integer.toString(MVTO.read(xact, Integer.parseInt(key)));
+        } catch (Exception e) {
+            return "-";
+        }
+    }
+
+    static ByteBuffer bytes(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.US_ASCII));
+    }
+}